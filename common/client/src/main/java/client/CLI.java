@@ -457,6 +457,16 @@ public class CLI {
                         System.out.println("Your transaction id is:" + transactionId);
                         break;
 
+                    case START_READ_ONLY:
+                        if (arguments.size() != 1) {
+                            wrongNumber();
+                            break;
+                        }
+                        System.out.println("Getting a new read-only transaction id:");
+                        transactionId = m_resourceManager.startReadOnly();
+                        System.out.println("Your transaction id is:" + transactionId);
+                        break;
+
                     case COMMIT:
                         if (arguments.size() != 2) {
                             wrongNumber();
@@ -502,6 +512,15 @@ public class CLI {
                         System.out.println("Ping system");
                         m_resourceManager.healthCheck();
                         break;
+                    case LOCK_STATS:
+                        if (arguments.size() != 1) {
+                            wrongNumber();
+                            break;
+                        }
+
+                        System.out.println("Querying lock statistics");
+                        System.out.println(m_resourceManager.queryLockStats());
+                        break;
                     case CRASH:
                         if (arguments.size() != 2) {
                             wrongNumber();
@@ -782,6 +801,14 @@ public class CLI {
                 System.out.println("\t" + command.getName());
                 break;
 
+            case START_READ_ONLY:
+                System.out.println("Start a new read-only transaction");
+                System.out.println("Purpose:");
+                System.out.println("\tStart a transaction which only queries a snapshot of the committed data");
+                System.out.println("\nUsage:");
+                System.out.println("\t" + command.getName());
+                break;
+
             case COMMIT:
                 System.out.println("Commit transaction");
                 System.out.println("Purpose:");
@@ -817,6 +844,13 @@ public class CLI {
                 System.out.println("\nUsage:");
                 System.out.println("\t" + command.getName());
                 break;
+            case LOCK_STATS:
+                System.out.println("Lock statistics");
+                System.out.println("Purpose:");
+                System.out.println("\tShow lock contention (waits, deadlocks, hot items) of each RM");
+                System.out.println("\nUsage:");
+                System.out.println("\t" + command.getName());
+                break;
             case CRASH_CASE:
                 System.out.println("Crash case");
                 System.out.println("Purpose:");
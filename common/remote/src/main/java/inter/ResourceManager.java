@@ -1,5 +1,6 @@
 package inter;
 
+import javax.transaction.InvalidTransactionException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
@@ -72,12 +73,14 @@ public interface ResourceManager extends Remote, ResourceManagerActions {
         RESERVE_ROOM("reserveRoom"),
         ITINERARY("itinerary"),
         START("start"),
+        START_READ_ONLY("startReadOnly"),
         COMMIT("commit"),
         ABORT("abort"),
         SHUTDOWN("shutdown"),
         PING("ping"),
         CRASH("crash"),
-        CRASH_CASE("crashCase")
+        CRASH_CASE("crashCase"),
+        LOCK_STATS("lockStats")
         ;
         private String m_functionName;
         private int m_id = 0;
@@ -232,9 +235,16 @@ public interface ResourceManager extends Remote, ResourceManagerActions {
 
 
     /* reserve an itinerary */
-    boolean itinerary(int id,int customer,Vector flightNumbers,String location, boolean Car, boolean Room)
+    boolean itinerary(int id,int customer,Vector<?> flightNumbers,String location, boolean Car, boolean Room)
 	throws RemoteException;
 
+    /* cancel the reservations of an itinerary */
+    boolean cancelItinerary(int id,int customer,Vector<?> flightNumbers,String location, boolean Car, boolean Room)
+	throws RemoteException;
+
+    /*Commit a transaction whose only participant is this RM, without a vote. Returns false if it aborted*/
+    boolean commitOnePhase(int transactionId) throws RemoteException, InvalidTransactionException;
+
     /*Health check*/
     void healthCheck() throws RemoteException;
 
@@ -252,4 +262,7 @@ public interface ResourceManager extends Remote, ResourceManagerActions {
 
     /*Get crash case*/
     int getCrashCase() throws RemoteException;
+
+    /*Lock manager contention report*/
+    String queryLockStats() throws RemoteException;
 }
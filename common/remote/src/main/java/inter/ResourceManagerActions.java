@@ -6,9 +6,17 @@ import javax.transaction.InvalidTransactionException;
 import java.rmi.RemoteException;
 
 public interface ResourceManagerActions {
+
+    // Vote request replies
+    int VOTE_NO = 0;
+    int VOTE_YES = 1;
+    int VOTE_READ_ONLY = 2;
+
     int start() throws RemoteException;
+    int startReadOnly() throws RemoteException;
+    void startSnapshot(int transactionId) throws RemoteException;
     boolean commit(int transactionId) throws RemoteException, InvalidTransactionException;
     void abort(int transactionId) throws RemoteException, InvalidTransactionException;
     boolean shutdown() throws RemoteException;
-    boolean voteRequest(int tid) throws RemoteException;
+    int voteRequest(int tid) throws RemoteException;
 }
@@ -0,0 +1,22 @@
+package lm;
+
+/*
+    How the Lock Manager handles deadlocks. DETECT lets conflicting requests
+    wait and aborts the youngest transaction of a cycle in the wait-for graph.
+    WAIT_DIE and WOUND_WAIT prevent cycles using the transaction age (a lower
+    xid is older): with WAIT_DIE an older requester waits for a younger holder
+    and a younger requester is aborted right away; with WOUND_WAIT an older
+    requester aborts (wounds) the younger transactions in its way and a
+    younger requester waits. Neither needs the background detector.
+*/
+
+public enum DeadlockPolicy {
+    DETECT,
+    WAIT_DIE,
+    WOUND_WAIT;
+
+    // parse a policy name such as "wait-die" or "WOUND_WAIT"
+    public static DeadlockPolicy fromName(String name) {
+        return DeadlockPolicy.valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,153 @@
+package lm;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/*
+    Granted locks and queued requests on a single data item. Holders are kept in
+    two parallel int arrays (xid, lock type) since an item rarely has more than a
+    handful of holders. Waiters are granted in FIFO order, except conversions
+    which go ahead of plain requests. All methods must be called while holding
+    the entry monitor.
+*/
+
+public class LockEntry {
+    private static final int INITIAL_DEPTH = 4;
+
+    private String strData;
+    private int[] xids = new int[INITIAL_DEPTH];
+    private int[] lockTypes = new int[INITIAL_DEPTH];
+    private int size = 0;
+
+    // created on the first conflict
+    private LinkedList<LockRequest> waiters;
+
+    // set once the entry is unlinked from the lock table; a thread that looked
+    // the entry up before that must fetch a fresh one
+    private boolean removed = false;
+
+    LockEntry(String strData) {
+        this.strData = strData;
+    }
+
+    public String getDataName() {
+        return this.strData;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public int getXId(int i) {
+        return this.xids[i];
+    }
+
+    public int getLockType(int i) {
+        return this.lockTypes[i];
+    }
+
+    // returns the lock type held by xid on this item, or -1 if it holds none
+    public int lockTypeOf(int xid) {
+        int i = indexOf(xid);
+        return i < 0 ? -1 : this.lockTypes[i];
+    }
+
+    // add a lock for xid, or replace the one it already holds (lock conversion)
+    void grant(int xid, int lockType) {
+        int i = indexOf(xid);
+        if (i >= 0) {
+            this.lockTypes[i] = lockType;
+            return;
+        }
+        if (this.size == this.xids.length) {
+            int[] newXids = new int[this.size * 2];
+            int[] newLockTypes = new int[this.size * 2];
+            System.arraycopy(this.xids, 0, newXids, 0, this.size);
+            System.arraycopy(this.lockTypes, 0, newLockTypes, 0, this.size);
+            this.xids = newXids;
+            this.lockTypes = newLockTypes;
+        }
+        this.xids[this.size] = xid;
+        this.lockTypes[this.size] = lockType;
+        this.size++;
+    }
+
+    // remove the lock held by xid, returns the released lock type or -1
+    int release(int xid) {
+        int i = indexOf(xid);
+        if (i < 0) {
+            return -1;
+        }
+        int lockType = this.lockTypes[i];
+        this.size--;
+        this.xids[i] = this.xids[this.size];
+        this.lockTypes[i] = this.lockTypes[this.size];
+        return lockType;
+    }
+
+    public boolean hasWaiters() {
+        return this.waiters != null && !this.waiters.isEmpty();
+    }
+
+    // the requests queued on this item, in grant order
+    public LinkedList<LockRequest> getWaiters() {
+        if (this.waiters == null) {
+            this.waiters = new LinkedList<>();
+        }
+        return this.waiters;
+    }
+
+    // queue a request, a conversion is placed after the conversions already queued
+    // but ahead of every other request
+    void enqueue(LockRequest request) {
+        LinkedList<LockRequest> queue = getWaiters();
+        if (!request.isConversion()) {
+            queue.addLast(request);
+            return;
+        }
+        ListIterator<LockRequest> it = queue.listIterator();
+        while (it.hasNext()) {
+            if (!it.next().isConversion()) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(request);
+    }
+
+    boolean dequeue(LockRequest request) {
+        return this.waiters != null && this.waiters.remove(request);
+    }
+
+    boolean isRemoved() {
+        return this.removed;
+    }
+
+    void markRemoved() {
+        this.removed = true;
+    }
+
+    private int indexOf(int xid) {
+        for (int i = 0; i < this.size; i++) {
+            if (this.xids[i] == xid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.size; i++) {
+            if (i > 0) {
+                sb.append("\n");
+            }
+            sb.append("xid(" + this.xids[i] + ")::strData(" + this.strData + ")::lockType(" + this.lockTypes[i] + ")");
+        }
+        return sb.toString();
+    }
+}
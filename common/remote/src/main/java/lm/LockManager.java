@@ -3,108 +3,415 @@ package lm;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Vector;
-
-public class LockManager implements Serializable {
-    public static final int READ = 0;
-    public static final int WRITE = 1;
-    
-    private static int TABLE_SIZE = 2039;
-    private static int DEADLOCK_TIMEOUT = 10000;
-    
-    private TPHashTable lockTable = new TPHashTable(LockManager.TABLE_SIZE);
-    private TPHashTable stampTable = new TPHashTable(LockManager.TABLE_SIZE);
-    private TPHashTable waitTable = new TPHashTable(LockManager.TABLE_SIZE);
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/*
+    Multi-granularity lock manager. Data items are named "<type>-<id>" (e.g.
+    "flight-42") and each type (e.g. "flight") can be locked as a whole. A type
+    is split into STRIPES stripes ("flight#0" to "flight#15") and each item
+    belongs to one of them. A READ lock on an item first takes an IS intention
+    lock on its stripe, a WRITE or UPDATE lock an IX one, so item lockers of a
+    type do not all queue on the same entry. A lock on a whole type is taken on
+    every stripe, in order. Once a transaction holds a READ (or SIX) or WRITE lock
+    on a type, its item locks of that type are implied and not stored.
+*/
+
+public class LockManager {
+    public static final int READ = TrxnObj.READ;
+    public static final int WRITE = TrxnObj.WRITE;
+    public static final int IS = TrxnObj.IS;
+    public static final int IX = TrxnObj.IX;
+    public static final int SIX = TrxnObj.SIX;
+    public static final int UPDATE = TrxnObj.UPDATE;
+
+    // COMPATIBLE[held][requested], indexed by lock type (READ, WRITE, IS, IX, SIX, UPDATE)
+    private static final boolean[][] COMPATIBLE = {
+            {true,  false, true,  false, false, true },
+            {false, false, false, false, false, false},
+            {true,  false, true,  true,  true,  true },
+            {false, false, true,  true,  false, false},
+            {false, false, true,  false, false, false},
+            {true,  false, true,  false, false, false}
+    };
+
+    // SUPREMUM[held][requested] is the weakest lock type covering both, a transaction
+    // holding one and asking for the other is converted to it
+    private static final int[][] SUPREMUM = {
+            {READ,   WRITE, READ,   SIX,   SIX,   UPDATE},
+            {WRITE,  WRITE, WRITE,  WRITE, WRITE, WRITE },
+            {READ,   WRITE, IS,     IX,    SIX,   UPDATE},
+            {SIX,    WRITE, IX,     IX,    SIX,   SIX   },
+            {SIX,    WRITE, SIX,    SIX,   SIX,   SIX   },
+            {UPDATE, WRITE, UPDATE, SIX,   SIX,   UPDATE}
+    };
+
+    // number of intention lock entries per type, must be a power of two
+    private static final int STRIPES = 16;
+
+    // period of the background sweep over the wait-for graph
+    private static final int DETECTOR_INTERVAL = 1000;
+
+    private LockTable lockTable = new LockTable();
+
+    private DeadlockPolicy policy;
+
+    // deadlock detection state, only meaningful while requests are blocked
+    private WaitForGraph waitsFor;
+    private Thread detector = null;
+    private ConcurrentHashMap<Integer, Set<LockRequest>> waiting;
+
+    // deadlock prevention state: transactions to abort once the entry monitor that
+    // found them is released, and transactions wounded by an older one (WOUND_WAIT)
+    private Set<Integer> victims = ConcurrentHashMap.newKeySet();
+    private Set<Integer> wounded = ConcurrentHashMap.newKeySet();
+
+    // requests issued once an earlier request of the same transaction is granted (the item
+    // after its stripe, the next stripe of a type, ...). UnlockAll() invalidates them so that
+    // a request granted while the transaction releases its locks does not lock anything more.
+    private ConcurrentHashMap<Integer, Set<Continuation>> continuations = new ConcurrentHashMap<>();
+
+    // aborts a wounded transaction which is not waiting for a lock, may be null
+    private volatile IntConsumer abortHandler = null;
+
+    // contention counters, reset on restart
+    private LockStats stats;
 
     // Logger
     private static final Logger logger = LogManager.getLogger(LockManager.class);
 
     public LockManager() {
+        this(DeadlockPolicy.DETECT);
+    }
+
+    public LockManager(DeadlockPolicy policy) {
         super();
+        this.policy = policy;
+        this.stats = new LockStats();
+        this.waitsFor = new WaitForGraph();
+        this.waiting = new ConcurrentHashMap<>();
+        if (policy == DeadlockPolicy.DETECT) {
+            initDeadlockDetection();
+        }
+    }
+
+    public DeadlockPolicy getPolicy() {
+        return this.policy;
+    }
+
+    private void initDeadlockDetection() {
+        // the graph is checked on every new wait edge, the sweep catches cycles
+        // closed by a request that did not itself end up on the cycle
+        this.detector = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(LockManager.DETECTOR_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int victim;
+                while ((victim = this.waitsFor.findDeadlock()) != -1) {
+                    abortVictim(victim);
+                }
+            }
+        });
+        this.detector.setName("Deadlock-detector");
+        this.detector.setDaemon(true);
+        this.detector.start();
     }
-    
+
+    // stop the deadlock detector. Locks can still be requested and released, but
+    // cycles are then only broken by the check done when a request starts waiting.
+    public void close() {
+        if (this.detector != null) {
+            this.detector.interrupt();
+            try {
+                this.detector.join(LockManager.DETECTOR_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public boolean Lock(int xid, String strData, int lockType) throws DeadlockException {
-    
+
         // if any parameter is invalid, then return false
-        if (xid < 0) { 
+        if (xid < 0) {
             return false;
         }
-        
+
         if (strData == null) {
             return false;
         }
-        
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) { 
+
+        if (!TrxnObj.isValid(lockType)) {
+            return false;
+        }
+
+        // intention locks only make sense on a whole type
+        if (parentOf(strData) != null && !isItemLockType(lockType)) {
             return false;
         }
-        
-        // two objects in lock table for easy lookup.
-        TrxnObj trxnObj = new TrxnObj(xid, strData, lockType);
-        DataObj dataObj = new DataObj(xid, strData, lockType);
-        
-        // return true when there is no lock conflict or throw a deadlock exception.
+
+        // wait until a release grants the request or it is picked as a deadlock victim
+        try {
+            lockAsync(xid, strData, lockType).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof DeadlockException) {
+                throw (DeadlockException) e.getCause();
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    // Non-blocking variant of Lock(). The returned future is completed once the lock is
+    // granted, or failed with a DeadlockException if the transaction is chosen as a deadlock
+    // victim or releases its locks before the request is granted. Invalid parameters fail the
+    // future with an IllegalArgumentException.
+    //
+    // A transaction may have requests pending on several items at once, e.g. to lock all the
+    // items of a reservation in one go. Dependent stages attached without an executor run in
+    // the thread that grants or cancels the request, i.e. while another transaction is
+    // releasing its locks, so they should not block.
+    public CompletableFuture<Void> lockAsync(int xid, String strData, int lockType) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        if (xid < 0) {
+            failed.completeExceptionally(new IllegalArgumentException("Invalid transaction id " + xid));
+            return failed;
+        }
+
+        if (strData == null) {
+            failed.completeExceptionally(new IllegalArgumentException("Missing data item"));
+            return failed;
+        }
+
+        if (!TrxnObj.isValid(lockType)) {
+            failed.completeExceptionally(new IllegalArgumentException("Invalid lock type " + lockType));
+            return failed;
+        }
+
+        String parent = parentOf(strData);
+        if (parent == null) {
+            // lock on a whole type
+            return requestStripes(xid, strData, lockType, 0);
+        }
+
+        if (!isItemLockType(lockType)) {
+            failed.completeExceptionally(new IllegalArgumentException(
+                    "Invalid lock type " + TrxnObj.name(lockType) + " on item " + strData));
+            return failed;
+        }
+
+        // a lock on the whole type already covers the item
+        String stripe = stripeOf(parent, strData);
+        int parentLockType = heldLockType(xid, stripe);
+        if (parentLockType == WRITE || (lockType == READ && (parentLockType == READ || parentLockType == SIX))) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // announce the item lock on its stripe first, the item is requested once the
+        // intention lock is granted
+        return thenRequest(xid, request(xid, stripe, lockType == READ ? IS : IX),
+                () -> request(xid, strData, lockType));
+    }
+
+    // install a lock held before a restart, without checking for conflicts
+    public void restore(int xid, String strData, int lockType) {
+        while (true) {
+            LockEntry entry = this.lockTable.get(strData);
+            synchronized (entry) {
+                if (entry.isRemoved()) {
+                    continue;
+                }
+                entry.grant(xid, lockType);
+                this.lockTable.addHolder(xid, entry);
+                break;
+            }
+        }
+
+        // the intention lock of an item lock is restored along with it
+        String parent = parentOf(strData);
+        if (parent != null) {
+            String stripe = stripeOf(parent, strData);
+            int intention = lockType == READ ? IS : IX;
+            int held = heldLockType(xid, stripe);
+            if (held == -1 || SUPREMUM[held][intention] != held) {
+                restore(xid, stripe, held == -1 ? intention : SUPREMUM[held][intention]);
+            }
+        }
+    }
+
+    // set how to abort a transaction wounded while it is not waiting for a lock
+    // (WOUND_WAIT). Nothing else would release its locks if it never requests
+    // another one. The handler is called by the thread of the older transaction,
+    // it must not block and the transaction must eventually call UnlockAll().
+    public void setAbortHandler(IntConsumer abortHandler) {
+        this.abortHandler = abortHandler;
+    }
+
+    // returns the transactions holding or waiting for a lock, so that a caller can
+    // release the ones it no longer knows about
+    public Set<Integer> getHolders() {
+        Set<Integer> holders = this.lockTable.holders();
+        holders.addAll(this.waiting.keySet());
+        return holders;
+    }
+
+    public LockStats getStats() {
+        return this.stats;
+    }
+
+    // lock types that can be requested on a single item
+    private static boolean isItemLockType(int lockType) {
+        return lockType == READ || lockType == WRITE || lockType == UPDATE;
+    }
+
+    // returns the type of an item key (the part before the first '-'), or null if the
+    // key already names a type
+    public static String parentOf(String strData) {
+        int i = strData.indexOf('-');
+        return i > 0 ? strData.substring(0, i) : null;
+    }
+
+    // returns the stripe of a type an item belongs to
+    private static String stripeOf(String parent, String strData) {
+        return parent + "#" + (strData.hashCode() & (STRIPES - 1));
+    }
+
+    // lock the stripes of a type from the given one on. The stripes are always
+    // requested in the same order, one at a time, so that two transactions locking
+    // the same type cannot each hold a part of it.
+    private CompletableFuture<Void> requestStripes(int xid, String type, int lockType, int stripe) {
+        CompletableFuture<Void> future = request(xid, type + "#" + stripe, lockType);
+        if (stripe == STRIPES - 1) {
+            return future;
+        }
+        return thenRequest(xid, future, () -> requestStripes(xid, type, lockType, stripe + 1));
+    }
+
+    // issue a request once the previous one of the transaction is granted, unless the
+    // transaction released its locks or was wounded meanwhile. The check and the request
+    // are done under the monitor of the continuation, which UnlockAll() takes to
+    // invalidate it before releasing anything: either the request is issued first and
+    // released along with the other locks, or it is not issued at all.
+    private CompletableFuture<Void> thenRequest(int xid, CompletableFuture<Void> previous,
+                                                Supplier<CompletableFuture<Void>> next) {
+        Continuation continuation = new Continuation();
+        this.continuations.computeIfAbsent(xid, k -> ConcurrentHashMap.newKeySet()).add(continuation);
+        CompletableFuture<Void> future = previous.thenCompose(v -> {
+            synchronized (continuation) {
+                if (continuation.released || this.wounded.contains(xid)) {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new DeadlockException(xid, continuation.released
+                            ? "Transaction released its locks while waiting" : "Wounded by an older transaction"));
+                    return failed;
+                }
+                return next.get();
+            }
+        });
+        future.whenComplete((v, e) -> this.continuations.computeIfPresent(xid, (k, pending) -> {
+            pending.remove(continuation);
+            return pending.isEmpty() ? null : pending;
+        }));
+        return future;
+    }
+
+    // request a lock on a single entry of the lock table
+    private CompletableFuture<Void> request(int xid, String strData, int lockType) {
+        LockRequest request = new LockRequest(xid, strData, lockType);
+        this.stats.recordRequest();
+
+        // a wounded transaction is being aborted, it must not wait for anything
+        if (this.wounded.contains(xid)) {
+            request.getFuture().completeExceptionally(new DeadlockException(xid, "Wounded by an older transaction"));
+            return request.getFuture();
+        }
+
+        // complete the future when the lock is granted right away, otherwise queue the request
         try {
-            boolean bConflict = true;
-            BitSet bConvert = new BitSet(1);
-            while (bConflict) {
-                synchronized (this.lockTable) {
+            while (true) {
+                LockEntry entry = this.lockTable.get(strData);
+                synchronized (entry) {
+                    if (entry.isRemoved()) {
+                        // the entry was unlinked by a concurrent release, look it up again
+                        continue;
+                    }
+
+                    // a transaction has at most one request queued per item, a second one
+                    // is issued once the first is granted
+                    LockRequest pending = pendingOn(xid, entry);
+                    if (pending != null) {
+                        return thenRequest(xid, pending.getFuture(), () -> request(xid, strData, lockType));
+                    }
+
                     // check if this lock request conflicts with existing locks
-                    bConflict = LockConflict(dataObj, bConvert);
-                    if (!bConflict) {
-                        // no lock conflict
-                        synchronized (this.stampTable) {
-                            // remove the timestamp (if any) for this lock request
-                            TimeObj timeObj = new TimeObj(xid);
-                            this.stampTable.remove(timeObj);
-                        }
-                        synchronized (this.waitTable) {
-                            // remove the entry for this transaction from waitTable (if it
-                            // is there) as it has been granted its lock request
-                            WaitObj waitObj = new WaitObj(xid, strData, lockType);
-                            this.waitTable.remove(waitObj);
-                        }
-                         
-                        if (bConvert.get(0) == true) {
-                            // lock conversion 
-                            // *** ADD CODE HERE *** to carry out the lock conversion in the
-                            // lock table
-                            synchronized (this.lockTable) {
-                                logger.info("Conversion bit is set. Converting READ lock to WRITE lock");
-                                this.lockTable.remove(trxnObj);
-                                this.lockTable.remove(dataObj);
-                                this.lockTable.add(trxnObj);
-                                this.lockTable.add(dataObj);
-                            }
-
-                        } else {
-                            // a lock request that is not lock conversion
-                            logger.info("Successfully acquired " + (lockType == READ ? "READ" : "WRITE") + " lock");
-                            this.lockTable.add(trxnObj);
-                            this.lockTable.add(dataObj);
-                        }
+                    BitSet bConvert = new BitSet(1);
+                    boolean bConflict = LockConflict(entry, request, bConvert);
+                    request.setConversion(bConvert.get(0));
+
+                    // a new request also waits behind the requests already queued so
+                    // that writers are not starved, a conversion only waits for the
+                    // other holders
+                    if (!bConflict && (request.isConversion() || !entry.hasWaiters())) {
+                        grant(entry, request);
+                        refreshWaits(entry);
+                        this.stats.recordImmediateGrant(request.isConversion());
+                        request.getFuture().complete(null);
+                        return request.getFuture();
                     }
-                }
-                if (bConflict) {
-                    // lock conflict exists, wait
+
+                    // lock conflict exists, park the request on the entry and record
+                    // whom it waits for
                     logger.info("Lock conflict detected, waiting ...");
-                    WaitLock(dataObj);
+                    request.setEntry(entry);
+                    request.setQueuedAt(System.nanoTime());
+                    entry.enqueue(request);
+                    this.stats.recordWait(strData);
+                    this.waiting.computeIfAbsent(xid, k -> Collections.newSetFromMap(new ConcurrentHashMap<>()))
+                            .add(request);
+                    refreshWaits(entry);
                 }
+                break;
             }
-        } 
-        catch (DeadlockException deadlock) {
-            throw deadlock;
         }
         catch (RedundantLockRequestException redundantlockrequest) {
-              // just ignore the redundant lock request
-            return true;
-        } 
+            // just ignore the redundant lock request
+            this.stats.recordRedundant();
+            request.getFuture().complete(null);
+            return request.getFuture();
+        }
 
-        return true;
+        // break the cycles the new edges closed, or abort the transactions the
+        // prevention policy picked. This is done outside of the entry monitor since
+        // cancelling a request takes the monitor of the entry it is queued on.
+        if (this.policy == DeadlockPolicy.DETECT) {
+            int victim;
+            while ((victim = this.waitsFor.findDeadlock(xid)) != -1) {
+                abortVictim(victim);
+            }
+        } else {
+            // the transaction may have been wounded while it was queuing
+            if (this.wounded.contains(xid)) {
+                this.victims.add(xid);
+            }
+            abortVictims();
+        }
+        return request.getFuture();
     }
 
-    
+
     // remove all locks for this transaction in the lock table.
     public boolean  UnlockAll(int xid) {
 
@@ -113,230 +420,285 @@ public class LockManager implements Serializable {
             return false;
         }
 
-        TrxnObj trxnQueryObj = new TrxnObj(xid, "", -1);  // Only used in elements() call below.
-        synchronized (this.lockTable) {
-            Vector vect = this.lockTable.elements(trxnQueryObj);
-
-            TrxnObj trxnObj;
-            Vector waitVector;
-            WaitObj waitObj;
-            int size = vect.size();
-                                                
-            for (int i = (size - 1); i >= 0; i--) {
+        // a request granted from now on must not go on to lock anything else
+        Set<Continuation> pending = this.continuations.remove(xid);
+        if (pending != null) {
+            for (Continuation continuation : pending) {
+                synchronized (continuation) {
+                    continuation.released = true;
+                }
+            }
+        }
 
-                boolean unlockFlag = true;
-                trxnObj = (TrxnObj) vect.elementAt(i);
-                unlockFlag &= this.lockTable.remove(trxnObj);
+        // a request still queued for this transaction would never be released
+        cancelAll(xid, "Transaction released its locks while waiting");
 
-                DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getDataName(), trxnObj.getLockType());
-                unlockFlag &= this.lockTable.remove(dataObj);
+        // nobody can be waiting for this transaction anymore
+        this.waitsFor.removeTransaction(xid);
+        this.wounded.remove(xid);
 
-                if(unlockFlag) {
-                    logger.info("Releasing " + (trxnObj.getLockType() == TrxnObj.READ ? "READ" : "WRITE") + " lock on "
-                            + trxnObj.getDataName() + " from transaction " + trxnObj.getXId());
+        // only visit the items this transaction holds a lock on
+        for (LockEntry entry : this.lockTable.removeHolder(xid)) {
+            List<LockRequest> granted;
+            synchronized (entry) {
+                int lockType = entry.isRemoved() ? -1 : entry.release(xid);
+                if (lockType == -1) {
+                    // this transaction holds no lock on the item
+                    continue;
                 }
 
-                // check if there are any waiting transactions. 
-                synchronized (this.waitTable) {
-                    // get all the transactions waiting on this dataObj
-                    waitVector = this.waitTable.elements(dataObj);
-                    int waitSize = waitVector.size();
-                    for (int j = 0; j < waitSize; j++) {
-                        waitObj = (WaitObj) waitVector.elementAt(j);
-                        if (waitObj.getLockType() == LockManager.WRITE) {
-                            if (j == 0) {
-                                // get all other transactions which have locks on the
-                                // data item just unlocked. 
-                                Vector vect1 = this.lockTable.elements(dataObj);
-                                
-                                // remove interrupted thread from waitTable only if no
-                                // other transaction has locked this data item
-                                if (vect1.size () == 0) {
-                                    this.waitTable.remove(waitObj);     
-                                    
-                                    try {
-                                        synchronized (waitObj.getThread())    {
-                                            waitObj.getThread().notify();
-                                        }    
-                                    }
-                                    catch (Exception e)    {
-                                        logger.error("Exception on unlock\n" + e.getMessage());
-                                    }        
-                                }
-                                else {
-                                    // some other transaction still has a lock on
-                                    // the data item just unlocked. So, WRITE lock
-                                    // cannot be granted.
-                                    break;
-                                }
-                            }
-
-                            // stop granting READ locks as soon as you find a WRITE lock
-                            // request in the queue of requests
-                            break;
-                        } else if (waitObj.getLockType() == LockManager.READ) {
-                            // remove interrupted thread from waitTable.
-                            this.waitTable.remove(waitObj);    
-                            
-                            try {
-                                synchronized (waitObj.getThread()) {
-                                    waitObj.getThread().notify();
-                                }    
-                            }
-                            catch (Exception e) {
-                                logger.error("Exception e\n" + e.getMessage());
-                            }
-                        }
-                    }
-                } 
+                logger.info("Releasing " + TrxnObj.name(lockType) + " lock on "
+                        + entry.getDataName() + " from transaction " + xid);
+
+                // hand the item over to the requests at the head of the queue
+                granted = grantWaiters(entry);
+
+                // drop the entry once nobody holds or waits for a lock on the item
+                this.lockTable.removeIfEmpty(entry);
             }
+            wakeUp(granted);
+        }
+        abortVictims();
+
+        // dumping the table walks every entry, only do it when debugging
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lock label after releasing locks of transaction " + xid + ":\n" + this.lockTable.toString());
         }
-        logger.info("Lock label after releasing locks of transaction " + xid + ":\n" + this.lockTable.toString());
         return true;
     }
 
-    
-    // returns true if the lock request on dataObj conflicts with already existing locks. If the lock request is a
-    // redundant one (for eg: if a transaction holds a read lock on certain data item and again requests for a read
-    // lock), then this is ignored. This is done by throwing RedundantLockRequestException which is handled 
-    // appropriately by the caller. If the lock request is a conversion from READ lock to WRITE lock, then bitset 
-    // is set. 
-    
-    private boolean LockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException, RedundantLockRequestException {
-        Vector vect = this.lockTable.elements(dataObj);
-        DataObj dataObj2;
-        int size = vect.size();
-        
-        // as soon as a lock that conflicts with the current lock request is found, return true
-        for (int i = 0; i < size; i++) {
-            dataObj2 = (DataObj) vect.elementAt(i);
-            if (dataObj.getXId() == dataObj2.getXId()) {    
-                // the transaction already has a lock on this data item which means that it is either
-                // relocking it or is converting the lock
-                if (dataObj.getLockType() == DataObj.READ) {    
-                    // since transaction already has a lock (may be READ, may be WRITE. we don't
-                    // care) on this data item and it is requesting a READ lock, this lock request
-                    // is redundant.
-                    String message = "Redundant READ lock request";
-                    logger.info(message);
-                    throw new RedundantLockRequestException(dataObj.getXId(), message);
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction already has a lock and is requesting a WRITE lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-                    if(dataObj2.getLockType() == DataObj.WRITE) {
-                        String message = "Redundant WRITE lock request";
-                        logger.info(message);
-                        throw new RedundantLockRequestException(dataObj.getXId(), message);
-                    } else if(dataObj2.getLockType() == DataObj.READ) {
-                        bitset.set(0, true);
-                    }
-                }
-            } 
-            else {
-                if (dataObj.getLockType() == DataObj.READ) {
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // transaction is requesting a READ lock and some other transaction
-                        // already has a WRITE lock on it ==> conflict
-                        logger.info("Want READ, someone has WRITE");
-                        return true;
-                    }
-                    else {
-                        // do nothing 
-                    }
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction is requesting a WRITE lock and some other transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    logger.info("Want WRITE, someone has READ or WRITE");
-                    return true;
-                }
+
+    // returns true if the lock request conflicts with locks already granted on the entry. If the lock request
+    // is a redundant one (for eg: if a transaction holds a read lock on certain data item and again requests
+    // for a read lock), then this is ignored. This is done by throwing RedundantLockRequestException which is
+    // handled appropriately by the caller. If the lock request is a conversion (for eg: from READ lock to
+    // WRITE lock, or from IX to SIX), then bitset is set and the request is changed to the converted type.
+
+    private boolean LockConflict(LockEntry entry, DataObj dataObj, BitSet bitset) throws RedundantLockRequestException {
+        int heldLockType = entry.lockTypeOf(dataObj.getXId());
+        if (heldLockType != -1) {
+            // the transaction already has a lock on this data item which means that it is either
+            // relocking it or is converting the lock
+            int lockType = SUPREMUM[heldLockType][dataObj.getLockType()];
+            if (lockType == heldLockType) {
+                // the lock already held is at least as strong as the one requested, this lock
+                // request is redundant.
+                String message = "Redundant " + TrxnObj.name(dataObj.getLockType()) + " lock request";
+                logger.info(message);
+                throw new RedundantLockRequestException(dataObj.getXId(), message);
             }
+
+            // transaction is upgrading its lock
+            dataObj.setLockType(lockType);
+            bitset.set(0, true);
+        }
+
+        // as soon as a lock of another transaction that conflicts with the current lock request
+        // is found, return true
+        if (!compatible(entry, dataObj)) {
+            logger.info("Want " + TrxnObj.name(dataObj.getLockType()) + ", someone has a conflicting lock");
+            return true;
         }
-        
+
         // no conflicting lock found, return false
         return false;
+    }
 
+    // returns true if no other transaction holds a lock on the entry that conflicts with the request
+    private boolean compatible(LockEntry entry, DataObj dataObj) {
+        for (int i = 0; i < entry.size(); i++) {
+            if (entry.getXId(i) != dataObj.getXId()
+                    && !COMPATIBLE[entry.getLockType(i)][dataObj.getLockType()]) {
+                return false;
+            }
+        }
+        return true;
     }
-    
-    private void WaitLock(DataObj dataObj) throws DeadlockException {
-        // Check timestamp or add a new one.
-        // Will always add new timestamp for each new lock request since
-        // the timeObj is deleted each time the transaction succeeds in
-        // getting a lock (see Lock() )
-        
-        TimeObj timeObj = new TimeObj(dataObj.getXId());
-        TimeObj timestamp = null;
-        long timeBlocked = 0;
-        Thread thisThread = Thread.currentThread();
-        WaitObj waitObj = new WaitObj(dataObj.getXId(), dataObj.getDataName(), dataObj.getLockType(), thisThread);
-
-        synchronized (this.stampTable) {
-            Vector vect = this.stampTable.elements(timeObj);
-            if (vect.size() == 0) {
-                // add the time stamp for this lock request to stampTable
-                this.stampTable.add(timeObj);
-                timestamp = timeObj;
-            } else if (vect.size() == 1) {
-                // lock operation could have timed out; check for deadlock
-                TimeObj prevStamp = (TimeObj)vect.firstElement();
-                timestamp = prevStamp;
-                timeBlocked = timeObj.getTime() - prevStamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater than the timeout period
-                    cleanupDeadlock(prevStamp, waitObj);
-                }
-            } else {
-                // should never get here. shouldn't be more than one time stamp per transaction
-                // because a transaction at a given time the transaction can be blocked on just one lock
-                // request. 
+
+    // returns the lock type xid holds on strData, or -1 if it holds none
+    private int heldLockType(int xid, String strData) {
+        LockEntry entry = this.lockTable.find(strData);
+        if (entry == null) {
+            return -1;
+        }
+        synchronized (entry) {
+            return entry.isRemoved() ? -1 : entry.lockTypeOf(xid);
+        }
+    }
+
+    // returns the transactions a queued request waits for: the holders it conflicts with and
+    // the conflicting requests queued ahead of it
+    private Set<Integer> blockers(LockEntry entry, LockRequest request) {
+        Set<Integer> blockers = new HashSet<>();
+        for (int i = 0; i < entry.size(); i++) {
+            if (entry.getXId(i) != request.getXId()
+                    && !COMPATIBLE[entry.getLockType(i)][request.getLockType()]) {
+                blockers.add(entry.getXId(i));
             }
-        } 
-        
-        // suspend thread and wait until notified...
-
-        synchronized (this.waitTable) {
-            if (! this.waitTable.contains(waitObj)) {
-                // register this transaction in the waitTable if it is not already there 
-                this.waitTable.add(waitObj);
+        }
+        for (LockRequest ahead : entry.getWaiters()) {
+            if (ahead == request) {
+                break;
             }
-            else {
-                // else lock manager already knows the transaction is waiting.
+            if (ahead.getXId() != request.getXId()
+                    && !COMPATIBLE[ahead.getLockType()][request.getLockType()]) {
+                blockers.add(ahead.getXId());
             }
         }
-        
-        synchronized (thisThread) {
-            try {
-                thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-                TimeObj currTime = new TimeObj(dataObj.getXId());
-                timeBlocked = currTime.getTime() - timestamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater than the timeout period
-                    cleanupDeadlock(timestamp, waitObj);
+        return blockers;
+    }
+
+    // recompute the edges of every request queued on the entry. A request can be
+    // blocked by a request inserted ahead of it after it was queued (a conversion),
+    // so edges are refreshed whenever the queue changes. Must be called while
+    // holding the entry monitor.
+    private void refreshWaits(LockEntry entry) {
+        if (this.policy != DeadlockPolicy.DETECT) {
+            preventDeadlocks(entry);
+            return;
+        }
+        for (LockRequest request : entry.getWaiters()) {
+            this.waitsFor.setWaits(request.getXId(), entry.getDataName(), blockers(entry, request));
+        }
+    }
+
+    // apply the prevention policy to every request queued on the entry: a request may
+    // only wait for younger (WAIT_DIE) or older (WOUND_WAIT) transactions. The
+    // transactions to abort are queued in victims and aborted by abortVictims() once
+    // the entry monitor is released. Must be called while holding the entry monitor.
+    private void preventDeadlocks(LockEntry entry) {
+        for (LockRequest request : entry.getWaiters()) {
+            for (Integer blocker : blockers(entry, request)) {
+                if (this.policy == DeadlockPolicy.WAIT_DIE && blocker < request.getXId()) {
+                    // younger requester dies
+                    this.victims.add(request.getXId());
+                    break;
                 }
-                else {
-                    return;
+                if (this.policy == DeadlockPolicy.WOUND_WAIT && blocker > request.getXId()
+                        && this.wounded.add(blocker)) {
+                    // older requester wounds the younger transaction in its way
+                    this.victims.add(blocker);
                 }
             }
-            catch (InterruptedException e) {
-                logger.error("Thread interrupted?");
+        }
+    }
+
+    // abort the transactions picked by preventDeadlocks(). A wounded transaction which is
+    // not waiting fails its next lock request, and is handed to the abort handler so that
+    // it does not keep its locks if it never requests another one.
+    private void abortVictims() {
+        for (Integer victim : this.victims) {
+            if (this.victims.remove(victim)) {
+                boolean isWounded = this.wounded.contains(victim);
+                String reason = isWounded ? "Wounded by an older transaction" : "Waiting for an older transaction";
+                logger.info("Deadlock prevented, transaction " + victim + " will be aborted: " + reason);
+                this.stats.recordDeadlock();
+                IntConsumer abortHandler = this.abortHandler;
+                if (!cancelAll(victim, reason) && isWounded && abortHandler != null) {
+                    abortHandler.accept(victim);
+                }
             }
         }
     }
-    
 
-    // cleanupDeadlock cleans up stampTable and waitTable, and throws DeadlockException
-    private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj)
-        throws DeadlockException
-    {
-        synchronized (this.stampTable) {
-            synchronized (this.waitTable) {
-                this.stampTable.remove(tmObj);
-                this.waitTable.remove(waitObj);
+    // returns the request xid has queued on the entry, or null. Must be called while holding
+    // the entry monitor.
+    private LockRequest pendingOn(int xid, LockEntry entry) {
+        Set<LockRequest> pending = this.waiting.get(xid);
+        if (pending != null) {
+            for (LockRequest request : pending) {
+                if (request.getEntry() == entry) {
+                    return request;
+                }
             }
         }
-        throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
+        return null;
+    }
+
+    // the request is not queued anymore. Must be called while holding the entry monitor.
+    private void removeWaiting(LockRequest request) {
+        this.waiting.computeIfPresent(request.getXId(), (xid, pending) -> {
+            pending.remove(request);
+            return pending.isEmpty() ? null : pending;
+        });
+        this.waitsFor.removeWaiter(request.getXId(), request.getDataName());
+    }
+
+    // add the lock to the entry. Must be called while holding the entry monitor.
+    private void grant(LockEntry entry, LockRequest request) {
+        if (request.isConversion()) {
+            logger.info("Conversion bit is set. Converting lock to " + TrxnObj.name(request.getLockType()));
+        } else {
+            logger.info("Successfully acquired " + TrxnObj.name(request.getLockType()) + " lock");
+        }
+        entry.grant(request.getXId(), request.getLockType());
+        this.lockTable.addHolder(request.getXId(), entry);
+    }
+
+    // grant the queued requests which became compatible, in FIFO order. Must be called while
+    // holding the entry monitor, the returned requests are woken up once it is released.
+    private List<LockRequest> grantWaiters(LockEntry entry) {
+        List<LockRequest> granted = new LinkedList<>();
+        LinkedList<LockRequest> queue = entry.getWaiters();
+        while (!queue.isEmpty() && compatible(entry, queue.getFirst())) {
+            LockRequest request = queue.removeFirst();
+            grant(entry, request);
+            removeWaiting(request);
+            this.stats.recordGrantAfterWait(request.isConversion(), System.nanoTime() - request.getQueuedAt());
+            granted.add(request);
+        }
+        refreshWaits(entry);
+        return granted;
+    }
+
+    private void wakeUp(List<LockRequest> granted) {
+        for (LockRequest request : granted) {
+            request.getFuture().complete(null);
+        }
+    }
+
+    // fail the pending requests of a deadlocked transaction, its Lock() call will throw a
+    // DeadlockException and the middleware aborts the transaction
+    private void abortVictim(int victim) {
+        logger.info("Deadlock detected, transaction " + victim + " is the youngest on the cycle and will be aborted");
+        this.stats.recordDeadlock();
+        cancelAll(victim, "Wait-for cycle detected...deadlock.");
+    }
+
+    // fail every request xid has queued, returns false if none was
+    private boolean cancelAll(int xid, String reason) {
+        boolean cancelled = false;
+        Set<LockRequest> pending = this.waiting.get(xid);
+        if (pending != null) {
+            for (LockRequest request : new ArrayList<>(pending)) {
+                cancelled |= cancel(request, new DeadlockException(xid, reason));
+            }
+        }
+        return cancelled;
+    }
+
+    // remove a queued request and fail it, returns false if it was granted in the meantime.
+    // Requests queued behind it may become grantable.
+    private boolean cancel(LockRequest request, DeadlockException reason) {
+        LockEntry entry = request.getEntry();
+        List<LockRequest> granted;
+        synchronized (entry) {
+            if (!entry.dequeue(request)) {
+                // granted in the meantime
+                return false;
+            }
+            removeWaiting(request);
+            granted = grantWaiters(entry);
+            this.lockTable.removeIfEmpty(entry);
+        }
+        request.getFuture().completeExceptionally(reason);
+        wakeUp(granted);
+        abortVictims();
+        return true;
+    }
+
+    // a request waiting for an earlier request of its transaction, see thenRequest()
+    private static class Continuation {
+        private boolean released = false;
     }
 }
@@ -0,0 +1,68 @@
+package lm;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+    A lock request queued on a LockEntry. The requesting thread blocks on the
+    future, which is completed by the thread that grants the lock or failed with
+    a DeadlockException when the request is chosen as a deadlock victim.
+*/
+
+public class LockRequest extends DataObj
+{
+    private static final long serialVersionUID = 1L;
+
+    private transient LockEntry entry = null;
+    private transient CompletableFuture<Void> future = new CompletableFuture<>();
+    private boolean conversion = false;
+    private transient long queuedAt = 0;
+
+    // The data members inherited are
+    // XObj:: protected int xid;
+    // TrxnObj:: protected String strData;
+    // TrxnObj:: protected int lockType;
+
+    LockRequest(int xid, String strData, int lockType) {
+        super(xid, strData, lockType);
+    }
+
+    public LockEntry getEntry() {
+        return this.entry;
+    }
+
+    void setEntry(LockEntry entry) {
+        this.entry = entry;
+    }
+
+    public CompletableFuture<Void> getFuture() {
+        return this.future;
+    }
+
+    // true if the requester already holds a weaker lock on the item
+    public boolean isConversion() {
+        return this.conversion;
+    }
+
+    void setConversion(boolean conversion) {
+        this.conversion = conversion;
+    }
+
+    // System.nanoTime() when the request was queued
+    public long getQueuedAt() {
+        return this.queuedAt;
+    }
+
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    // identity matters for requests, two requests with the same fields are
+    // still two different waiters
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
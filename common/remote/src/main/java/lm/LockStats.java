@@ -0,0 +1,194 @@
+package lm;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Contention counters of the Lock Manager. Wait times are kept in a histogram
+    of power of two buckets (in microseconds), so percentiles are reported as
+    the upper bound of the bucket they fall in. Conflicts are counted per data
+    item to find the hot ones; only the first MAX_TRACKED_KEYS items are
+    tracked so the map cannot grow without bound.
+*/
+
+public class LockStats implements LockStatsMBean {
+    private static final int BUCKETS = 40;
+    private static final int MAX_TRACKED_KEYS = 10000;
+    private static final int TOP_KEYS = 10;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder immediateGrants = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder grantsAfterWait = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder conversions = new LongAdder();
+    private final LongAdder redundantRequests = new LongAdder();
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(BUCKETS);
+    private final ConcurrentHashMap<String, LongAdder> conflicts = new ConcurrentHashMap<>();
+
+    LockStats() {
+        super();
+    }
+
+    void recordRequest() {
+        this.requests.increment();
+    }
+
+    void recordImmediateGrant(boolean conversion) {
+        this.immediateGrants.increment();
+        if (conversion) {
+            this.conversions.increment();
+        }
+    }
+
+    void recordRedundant() {
+        this.redundantRequests.increment();
+    }
+
+    // a request was queued behind conflicting locks on strData
+    void recordWait(String strData) {
+        this.waits.increment();
+        LongAdder count = this.conflicts.get(strData);
+        if (count == null && this.conflicts.size() < MAX_TRACKED_KEYS) {
+            count = this.conflicts.computeIfAbsent(strData, k -> new LongAdder());
+        }
+        if (count != null) {
+            count.increment();
+        }
+    }
+
+    void recordGrantAfterWait(boolean conversion, long waitNanos) {
+        this.grantsAfterWait.increment();
+        if (conversion) {
+            this.conversions.increment();
+        }
+        long micros = Math.max(0, waitNanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.waitHistogram.incrementAndGet(bucket);
+    }
+
+    void recordDeadlock() {
+        this.deadlocks.increment();
+    }
+
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    public long getImmediateGrants() {
+        return this.immediateGrants.sum();
+    }
+
+    public long getWaits() {
+        return this.waits.sum();
+    }
+
+    public long getGrantsAfterWait() {
+        return this.grantsAfterWait.sum();
+    }
+
+    public long getDeadlocks() {
+        return this.deadlocks.sum();
+    }
+
+    public long getConversions() {
+        return this.conversions.sum();
+    }
+
+    public long getRedundantRequests() {
+        return this.redundantRequests.sum();
+    }
+
+    public long getWaitP50Micros() {
+        return waitPercentile(50);
+    }
+
+    public long getWaitP90Micros() {
+        return waitPercentile(90);
+    }
+
+    public long getWaitP99Micros() {
+        return waitPercentile(99);
+    }
+
+    public long getWaitMaxMicros() {
+        return waitPercentile(100);
+    }
+
+    // returns the upper bound of the bucket holding the given percentile of the waits,
+    // or 0 if no request waited
+    public long waitPercentile(int percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.waitHistogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (total * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    // the data items with the most conflicts, formatted as "key=count"
+    public String[] getHotKeys() {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> conflict : this.conflicts.entrySet()) {
+            counts.add(new AbstractMap.SimpleEntry<>(conflict.getKey(), conflict.getValue().sum()));
+        }
+        counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        String[] hotKeys = new String[Math.min(TOP_KEYS, counts.size())];
+        for (int i = 0; i < hotKeys.length; i++) {
+            hotKeys[i] = counts.get(i).getKey() + "=" + counts.get(i).getValue();
+        }
+        return hotKeys;
+    }
+
+    public void reset() {
+        this.requests.reset();
+        this.immediateGrants.reset();
+        this.waits.reset();
+        this.grantsAfterWait.reset();
+        this.deadlocks.reset();
+        this.conversions.reset();
+        this.redundantRequests.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            this.waitHistogram.set(i, 0);
+        }
+        this.conflicts.clear();
+    }
+
+    public String toString() {
+        long requests = getRequests();
+        long waits = getWaits();
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests=" + requests);
+        sb.append(" immediate=" + getImmediateGrants());
+        sb.append(" waits=" + waits);
+        sb.append(" conflictRate=" + (requests == 0 ? 0 : (100 * waits / requests)) + "%");
+        sb.append(" grantedAfterWait=" + getGrantsAfterWait());
+        sb.append(" deadlocks=" + getDeadlocks());
+        sb.append(" conversions=" + getConversions());
+        sb.append(" redundant=" + getRedundantRequests());
+        sb.append("\nwait(us) p50<=" + getWaitP50Micros() + " p90<=" + getWaitP90Micros()
+                + " p99<=" + getWaitP99Micros() + " max<=" + getWaitMaxMicros());
+        sb.append("\nhot keys:");
+        for (String hotKey : getHotKeys()) {
+            sb.append(" " + hotKey);
+        }
+        return sb.toString();
+    }
+}
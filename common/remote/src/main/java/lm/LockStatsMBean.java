@@ -0,0 +1,33 @@
+package lm;
+
+/*
+    JMX view of the Lock Manager counters, see LockStats.
+*/
+
+public interface LockStatsMBean {
+    long getRequests();
+
+    long getImmediateGrants();
+
+    long getWaits();
+
+    long getGrantsAfterWait();
+
+    long getDeadlocks();
+
+    long getConversions();
+
+    long getRedundantRequests();
+
+    long getWaitP50Micros();
+
+    long getWaitP90Micros();
+
+    long getWaitP99Micros();
+
+    long getWaitMaxMicros();
+
+    String[] getHotKeys();
+
+    void reset();
+}
@@ -0,0 +1,84 @@
+package lm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Lock table for the Lock Manager. Each data item owns a LockEntry stored in a
+    concurrent map, so lock requests on different items synchronize on different
+    monitors instead of a single table-wide one. A second map indexes the
+    entries each transaction holds a lock on, so releasing a transaction only
+    visits the items it locked.
+*/
+
+public class LockTable {
+    private ConcurrentHashMap<String, LockEntry> entries = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Integer, Set<LockEntry>> held = new ConcurrentHashMap<>();
+
+    LockTable() {
+        super();
+    }
+
+    // returns the entry of a data item, creating it if needed. The caller must
+    // synchronize on the entry and look it up again if isRemoved() is true.
+    public LockEntry get(String strData) {
+        return this.entries.computeIfAbsent(strData, LockEntry::new);
+    }
+
+    // returns the entry of a data item, or null if nobody locks it
+    public LockEntry find(String strData) {
+        return this.entries.get(strData);
+    }
+
+    public Collection<LockEntry> entries() {
+        return this.entries.values();
+    }
+
+    // record that xid holds a lock on the entry. Must be called while holding
+    // the entry monitor.
+    void addHolder(int xid, LockEntry entry) {
+        this.held.computeIfAbsent(xid, k -> Collections.newSetFromMap(new ConcurrentHashMap<>())).add(entry);
+    }
+
+    // returns the transactions holding at least one lock
+    Set<Integer> holders() {
+        return new HashSet<>(this.held.keySet());
+    }
+
+    // detach and return the entries locked by xid
+    Set<LockEntry> removeHolder(int xid) {
+        Set<LockEntry> entries = this.held.remove(xid);
+        return entries == null ? Collections.<LockEntry>emptySet() : entries;
+    }
+
+    // unlink an entry which has no more holders nor waiters. Must be called while
+    // holding the entry monitor.
+    void removeIfEmpty(LockEntry entry) {
+        if (entry.isEmpty() && !entry.hasWaiters() && !entry.isRemoved()) {
+            entry.markRemoved();
+            this.entries.remove(entry.getDataName(), entry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (LockEntry entry : this.entries.values()) {
+            String str;
+            synchronized (entry) {
+                str = entry.toString();
+            }
+            if (str.length() > 0) {
+                sb.append(str);
+                sb.append("\n");
+            }
+        }
+        if (sb.length() == 0) {
+            return "EMPTY TABLE";
+        }
+        return sb.toString();
+    }
+}
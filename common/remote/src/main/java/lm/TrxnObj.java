@@ -3,6 +3,18 @@ package lm;
 public class TrxnObj extends XObj {
     public static final int READ = 0;
     public static final int WRITE = 1;
+
+    // intention modes, only taken on a resource type (e.g. "flight") to announce
+    // READ or WRITE locks on items of that type (e.g. "flight-42")
+    public static final int IS = 2;
+    public static final int IX = 3;
+    public static final int SIX = 4;
+
+    // read with the intent to write later: shared with readers but exclusive among
+    // updaters, so two transactions cannot both read and then deadlock converting
+    public static final int UPDATE = 5;
+
+    private static final String[] NAMES = {"READ", "WRITE", "IS", "IX", "SIX", "UPDATE"};
     
     protected String strData = null;
     protected int lockType = -1;
@@ -20,7 +32,7 @@ public class TrxnObj extends XObj {
         super(xid);
         this.strData = new String(strData);
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (isValid(lockType)) {
             this.lockType = lockType;
         } else {
             this.lockType = -1;    // invalid lock type.
@@ -64,7 +76,7 @@ public class TrxnObj extends XObj {
     }
     
     public void setLockType(int lockType) {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (isValid(lockType)) {
             this.lockType = lockType;
         }
     }
@@ -72,4 +84,12 @@ public class TrxnObj extends XObj {
     public int getLockType() {
         return this.lockType;
     }
+
+    public static boolean isValid(int lockType) {
+        return lockType >= TrxnObj.READ && lockType <= TrxnObj.UPDATE;
+    }
+
+    public static String name(int lockType) {
+        return isValid(lockType) ? NAMES[lockType] : "INVALID";
+    }
 }
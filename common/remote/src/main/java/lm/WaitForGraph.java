@@ -0,0 +1,125 @@
+package lm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    Wait-for graph of the Lock Manager. An edge T1 -> T2 means that T1 is blocked
+    on a lock held by T2, so a cycle in the graph is a deadlock. Only blocked
+    transactions have outgoing edges, kept per data item since a transaction
+    may have several requests pending at once (see LockManager.lockAsync()).
+    When a cycle is found the youngest transaction on it (highest xid) is
+    chosen as the victim and its edges are dropped right away so the same
+    cycle is not broken twice.
+*/
+
+public class WaitForGraph {
+    private Map<Integer, Map<String, Set<Integer>>> edges = new HashMap<>();
+
+    WaitForGraph() {
+        super();
+    }
+
+    // set the transactions xid is blocked on for its request on strData
+    public synchronized void setWaits(int xid, String strData, Set<Integer> holders) {
+        this.edges.computeIfAbsent(xid, k -> new HashMap<>()).put(strData, holders);
+    }
+
+    // look for a cycle reachable from xid. Returns the victim, or -1 if there is
+    // no such deadlock.
+    public synchronized int findDeadlock(int xid) {
+        List<Integer> cycle = findCycle(xid, new HashSet<>(), new LinkedList<>());
+        if (cycle == null) {
+            return -1;
+        }
+        return chooseVictim(cycle);
+    }
+
+    // look for any cycle in the graph. Returns the victim, or -1 if there is
+    // no deadlock.
+    public synchronized int findDeadlock() {
+        Set<Integer> visited = new HashSet<>();
+        for (Integer xid : this.edges.keySet()) {
+            if (!visited.contains(xid)) {
+                List<Integer> cycle = findCycle(xid, visited, new LinkedList<>());
+                if (cycle != null) {
+                    return chooseVictim(cycle);
+                }
+            }
+        }
+        return -1;
+    }
+
+    // the request of xid on strData is not blocked anymore
+    public synchronized void removeWaiter(int xid, String strData) {
+        Map<String, Set<Integer>> waits = this.edges.get(xid);
+        if (waits != null) {
+            waits.remove(strData);
+            if (waits.isEmpty()) {
+                this.edges.remove(xid);
+            }
+        }
+    }
+
+    // xid released all its locks, nobody waits for it anymore
+    public synchronized void removeTransaction(int xid) {
+        this.edges.remove(xid);
+        for (Map<String, Set<Integer>> waits : this.edges.values()) {
+            for (Set<Integer> holders : waits.values()) {
+                holders.remove(xid);
+            }
+        }
+    }
+
+    // depth first search from xid. Returns the transactions of the first cycle
+    // found, or null. Nodes of the current path are kept in path.
+    private List<Integer> findCycle(int xid, Set<Integer> visited, LinkedList<Integer> path) {
+        int index = path.indexOf(xid);
+        if (index >= 0) {
+            return new LinkedList<>(path.subList(index, path.size()));
+        }
+        if (visited.contains(xid)) {
+            return null;
+        }
+        visited.add(xid);
+        Map<String, Set<Integer>> waits = this.edges.get(xid);
+        if (waits == null) {
+            return null;
+        }
+        path.addLast(xid);
+        for (Set<Integer> holders : waits.values()) {
+            for (Integer holder : holders) {
+                List<Integer> cycle = findCycle(holder, visited, path);
+                if (cycle != null) {
+                    return cycle;
+                }
+            }
+        }
+        path.removeLast();
+        return null;
+    }
+
+    private int chooseVictim(List<Integer> cycle) {
+        int victim = -1;
+        for (Integer xid : cycle) {
+            victim = Math.max(victim, xid);
+        }
+        this.edges.remove(victim);
+        return victim;
+    }
+
+    public synchronized String toString() {
+        if (this.edges.isEmpty()) {
+            return "EMPTY GRAPH";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Map<String, Set<Integer>>> edge : this.edges.entrySet()) {
+            sb.append(edge.getKey() + " -> " + edge.getValue() + "\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File rewritten as a whole on every change, such as the TM file or the
+ * recovery files of the middleware.
+ *
+ * A write goes to a temporary file which then replaces the file, so a crash
+ * leaves either the old or the new content, never a partial file. Whether
+ * the temporary file is synced first, and the directory after the rename,
+ * depends on the SyncPolicy:
+ * - none: never, the rename can reach the disk before the content
+ * - group-fsync: concurrent writers share a single write and sync of the
+ *   most recent content, see GroupCommit
+ * - fsync-per-commit: each writer writes and syncs the file on its own
+ *
+ * Writers hand the new content with update() while holding whatever lock
+ * protects the state it was taken from, then call sync() without that lock
+ * to wait until the content, or a more recent one, is stored.
+ */
+public class DurableFile {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(DurableFile.class);
+
+    // File and its temporary copy
+    private File m_file;
+    private File m_tmpFile;
+
+    // When the file is synced
+    private SyncPolicy m_policy;
+
+    // Most recent content, null once stored
+    private byte[] m_content;
+
+    // Only one thread writes the file at a time
+    private final Object m_writeLock = new Object();
+
+    // Shares the writes of concurrent writers in group-fsync mode
+    private GroupCommit m_groupCommit;
+
+    /**
+     * Construct a durable file with the default policy
+     * @param file
+     */
+    public DurableFile(File file) {
+        this(file, SyncPolicy.getDefault());
+    }
+
+    /**
+     * Construct a durable file
+     * @param file
+     * @param policy
+     */
+    public DurableFile(File file, SyncPolicy policy) {
+        m_file = file;
+        m_tmpFile = new File(file.getPath() + ".tmp");
+        m_policy = policy;
+        if(policy == SyncPolicy.GROUP_FSYNC) {
+            m_groupCommit = new GroupCommit("Durable-file-sync-" + file.getName(), () -> store(true));
+        }
+    }
+
+    /**
+     * Get the sync policy
+     * @return policy
+     */
+    public SyncPolicy getPolicy() {
+        return m_policy;
+    }
+
+    /**
+     * Set the content to store at the next sync. Contents must be handed
+     * in the order of the changes they reflect.
+     * @param content
+     */
+    public synchronized void update(byte[] content) {
+        m_content = content;
+    }
+
+    /**
+     * Wait until the content handed so far is stored. Must not be called
+     * while holding a lock needed to call update().
+     * @throws IOException if the file could not be written
+     */
+    public void sync() throws IOException {
+        if(m_policy == SyncPolicy.GROUP_FSYNC) {
+            m_groupCommit.sync();
+        } else {
+            store(m_policy == SyncPolicy.FSYNC_PER_COMMIT);
+        }
+    }
+
+    /**
+     * Serialize an object with Java serialization
+     * @param object
+     * @return bytes
+     * @throws IOException
+     */
+    public static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream obj = new ObjectOutputStream(bytes)) {
+            obj.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Atomically replace a file with an already synced one, then sync the
+     * directory so that the rename itself survives a crash
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    public static void replace(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Sync a directory, making the entries created, renamed or removed in it durable
+     * @param dir
+     * @throws IOException
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Write the most recent content to the temporary file, then replace
+     * the file with it
+     * @param fsync true to sync the temporary file before the replacement and
+     *              the directory after it
+     * @throws IOException
+     */
+    private void store(boolean fsync) throws IOException {
+        synchronized(m_writeLock) {
+            byte[] content;
+            synchronized(this) {
+                content = m_content;
+                m_content = null;
+            }
+            if(content == null) {
+                // Stored by a concurrent writer
+                return;
+            }
+            try {
+                try(FileOutputStream fos = new FileOutputStream(m_tmpFile)) {
+                    fos.write(content);
+                    if(fsync) {
+                        fos.getFD().sync();
+                    }
+                }
+                if(fsync) {
+                    replace(m_tmpFile, m_file);
+                } else {
+                    Files.move(m_tmpFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                // Keep the content for the next sync unless a newer one came
+                synchronized(this) {
+                    if(m_content == null) {
+                        m_content = content;
+                    }
+                }
+                throw e;
+            }
+            logger.info("File " + m_file.getAbsolutePath() + " updated!");
+        }
+    }
+}
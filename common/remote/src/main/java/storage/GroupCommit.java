@@ -0,0 +1,184 @@
+package storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit stage in front of a file which has to be synced.
+ *
+ * Writers append to the file on their own, then call sync() to wait until
+ * what they appended is on disk. A flusher thread collects the sync requests
+ * arriving within a short window, or until enough of them are waiting, and
+ * syncs the file once for all of them. A longer window trades commit latency
+ * for fewer syncs.
+ *
+ * The window and batch size default to the system properties
+ * storage.groupCommit.delayMicros and storage.groupCommit.maxBatch.
+ */
+public class GroupCommit {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(GroupCommit.class);
+
+    // Defaults
+    public static final long DEFAULT_DELAY_MICROS = Long.getLong("storage.groupCommit.delayMicros", 500);
+    public static final int DEFAULT_MAX_BATCH = Integer.getInteger("storage.groupCommit.maxBatch", 64);
+
+    /**
+     * Operation making the appended data durable
+     */
+    public interface Syncer {
+        void sync() throws IOException;
+    }
+
+    // File to sync
+    private Syncer m_syncer;
+
+    // How long the first request of a batch waits for others
+    private long m_delayNanos;
+
+    // Number of requests which triggers a sync right away
+    private int m_maxBatch;
+
+    // Requests are numbered, all requests up to m_synced are done
+    private long m_requested = 0;
+    private long m_synced = 0;
+
+    // Most recent failed batches: last request -> first request and error
+    private static final int MAX_FAILURES = 16;
+    private TreeMap<Long, Failure> m_failures = new TreeMap<>();
+
+    // Number of syncs performed
+    private long m_syncs = 0;
+
+    // Guards the counters; a condition is used rather than the monitor of
+    // the stage because Object.wait() rounds the window up to a millisecond
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_changed = m_lock.newCondition();
+
+    /**
+     * Construct a group commit stage with the default window and batch size
+     * @param name name of the flusher thread
+     * @param syncer
+     */
+    public GroupCommit(String name, Syncer syncer) {
+        this(name, syncer, DEFAULT_DELAY_MICROS, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Construct a group commit stage
+     * @param name name of the flusher thread
+     * @param syncer
+     * @param delayMicros how long the first request of a batch waits for others
+     * @param maxBatch number of requests which triggers a sync right away
+     */
+    public GroupCommit(String name, Syncer syncer, long delayMicros, int maxBatch) {
+        m_syncer = syncer;
+        m_delayNanos = delayMicros * 1000;
+        m_maxBatch = Math.max(1, maxBatch);
+        Thread flusher = new Thread(this::flushLoop, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Wait until everything appended to the file before this call is durable
+     * @throws IOException if the sync failed
+     */
+    public void sync() throws IOException {
+        m_lock.lock();
+        try {
+            long ticket = ++m_requested;
+            m_changed.signalAll();
+            while(m_synced < ticket) {
+                m_changed.awaitUninterruptibly();
+            }
+            Map.Entry<Long, Failure> failure = m_failures.ceilingEntry(ticket);
+            if(failure != null && failure.getValue().m_first <= ticket) {
+                throw failure.getValue().m_error;
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of syncs performed
+     * @return number of syncs
+     */
+    public long getSyncs() {
+        m_lock.lock();
+        try {
+            return m_syncs;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Sync the file for the requests collected in a window, forever
+     */
+    private void flushLoop() {
+        while(true) {
+            long batch;
+            m_lock.lock();
+            try {
+                while(m_requested == m_synced) {
+                    m_changed.awaitUninterruptibly();
+                }
+                long deadline = System.nanoTime() + m_delayNanos;
+                long remaining;
+                while(m_requested - m_synced < m_maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                    m_changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Group commit flusher interrupted");
+            } finally {
+                batch = m_requested;
+                m_lock.unlock();
+            }
+
+            IOException failure = null;
+            try {
+                m_syncer.sync();
+            } catch (IOException e) {
+                logger.error("Group commit failed to sync. Message: " + e.getMessage());
+                failure = e;
+            }
+
+            m_lock.lock();
+            try {
+                if(failure != null) {
+                    m_failures.put(batch, new Failure(m_synced + 1, failure));
+                    if(m_failures.size() > MAX_FAILURES) {
+                        m_failures.pollFirstEntry();
+                    }
+                }
+                m_synced = batch;
+                m_syncs++;
+                m_changed.signalAll();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Requests of a batch which failed to sync
+     */
+    private static class Failure {
+        private long m_first;
+        private IOException m_error;
+
+        Failure(long first, IOException error) {
+            m_first = first;
+            m_error = error;
+        }
+    }
+}
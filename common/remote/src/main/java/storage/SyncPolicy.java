@@ -0,0 +1,61 @@
+package storage;
+
+/**
+ * When the files of the servers are synced to disk.
+ *
+ * The policy defaults to the system property storage.syncPolicy, one of
+ * none, group-fsync or fsync-per-commit.
+ */
+public enum SyncPolicy {
+
+    // Written to the operating system only, lost if the machine crashes
+    NONE("none"),
+
+    // Synced once for the writes of concurrent commits, see GroupCommit
+    GROUP_FSYNC("group-fsync"),
+
+    // Synced by each commit on its own
+    FSYNC_PER_COMMIT("fsync-per-commit");
+
+    // Default policy
+    private static final SyncPolicy DEFAULT = fromName(System.getProperty("storage.syncPolicy", "group-fsync"));
+
+    // Name of the policy in the system property
+    private String m_name;
+
+    SyncPolicy(String name) {
+        m_name = name;
+    }
+
+    /**
+     * Get the name of the policy
+     * @return name
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Get a policy by name
+     * @param name
+     * @return policy
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static SyncPolicy fromName(String name) {
+        for(SyncPolicy policy : values()) {
+            if(policy.m_name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sync policy " + name + ", expected none, group-fsync or "
+                + "fsync-per-commit");
+    }
+
+    /**
+     * Get the policy set by the system property storage.syncPolicy
+     * @return policy
+     */
+    public static SyncPolicy getDefault() {
+        return DEFAULT;
+    }
+}
@@ -3,6 +3,9 @@ package tm;
 import inter.ResourceManager;
 import lm.TrxnObj;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -10,16 +13,34 @@ import java.util.List;
 import java.util.Set;
 
 public class Transaction implements Serializable {
+    // Same value as the one computed for the first version of the class,
+    // transactions are stored in the TM file
+    private static final long serialVersionUID = 4733272168842506666L;
+
     private int m_xid;
     private Set<String> m_rms;
-    private long m_lastActive;
+    private transient volatile long m_lastActive;
+    private boolean m_readOnly;
 
     public Transaction(int xid) {
+        this(xid, false);
+    }
+
+    public Transaction(int xid, boolean readOnly) {
         m_xid = xid;
         m_rms = new HashSet<>();
+        m_readOnly = readOnly;
         updateLastActive();
     }
 
+    /**
+     * Check if the transaction only reads snapshots
+     * @return true if read-only
+     */
+    public boolean isReadOnly() {
+        return m_readOnly;
+    }
+
     /**
      * Update the last active time
      */
@@ -37,18 +58,47 @@ public class Transaction implements Serializable {
 
     /**
      * Get involved Resource managers
-     * @return set of resource managers
+     * @return copy of the set of resource managers
      */
-    public Set<String> getRMs() {
-        return m_rms;
+    public synchronized Set<String> getRMs() {
+        return new HashSet<>(m_rms);
     }
 
     /**
      * Add an involved RM
      * @param rm
+     * @return true if the RM was not involved yet
      */
-    public void addRM(String rm) {
-        m_rms.add(rm);
+    public synchronized boolean addRM(String rm) {
+        return m_rms.add(rm);
+    }
+
+    /**
+     * Remove an RM which has nothing left to do for this transaction
+     * @param rm
+     */
+    public synchronized void removeRM(String rm) {
+        m_rms.remove(rm);
+    }
+
+    /**
+     * Write the transaction while no RM is added or removed
+     * @param out
+     * @throws IOException
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Read a transaction, its idle time starts from now
+     * @param in
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        updateLastActive();
     }
 
     /**
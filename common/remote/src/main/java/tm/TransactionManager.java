@@ -4,13 +4,18 @@ import inter.ResourceManagerActions;
 import lm.TransactionAbortedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import storage.DurableFile;
 
 import javax.transaction.InvalidTransactionException;
 import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TransactionManager implements ResourceManagerActions, Serializable {
+    // Value computed for the original class, so that TM files written
+    // before fields were added can still be read
+    private static final long serialVersionUID = -2159554294593209532L;
 
     // Logger
     private static final Logger logger = LogManager.getLogger(TransactionManager.class);
@@ -21,11 +26,26 @@ public class TransactionManager implements ResourceManagerActions, Serializable
     // Unique transaction id
     private int m_uniqId = 1;
 
+    // TM file, written atomically with the sync policy of the server
+    private transient DurableFile m_tmFile;
+
     /**
      * Construct a transaction manager
      */
     public TransactionManager() {
-        m_transactionMap = new HashMap<>();
+        m_transactionMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Read a transaction manager. Older TM files store the transactions
+     * in a map which is not thread-safe.
+     * @param in
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        m_transactionMap = new ConcurrentHashMap<>(m_transactionMap);
     }
 
     /**
@@ -43,10 +63,11 @@ public class TransactionManager implements ResourceManagerActions, Serializable
      * @exception InvalidTransactionException
      */
     private Transaction getTransaction(int id) throws InvalidTransactionException {
-        if(!m_transactionMap.containsKey(id)) {
+        Transaction transaction = m_transactionMap.get(id);
+        if(transaction == null) {
             throw new InvalidTransactionException("Transaction id " + id + " is not available");
         }
-        return m_transactionMap.get(id);
+        return transaction;
     }
 
     /**
@@ -59,11 +80,13 @@ public class TransactionManager implements ResourceManagerActions, Serializable
     }
 
     public void removeTransaction(int id) throws InvalidTransactionException {
-        if(!m_transactionMap.containsKey(id)) {
+        Transaction transaction = m_transactionMap.remove(id);
+        if(transaction == null) {
             throw new InvalidTransactionException("Transaction id " + id + " is not available");
         }
-        m_transactionMap.remove(id);
-        writeTM();
+        if(!transaction.isReadOnly()) {
+            writeTM();
+        }
     }
 
     /**
@@ -73,12 +96,53 @@ public class TransactionManager implements ResourceManagerActions, Serializable
      */
     @Override
     public int start() throws RemoteException {
-       Transaction transaction = new Transaction(m_uniqId++);
-       m_transactionMap.put(transaction.getXID(), transaction);
+       Transaction transaction = newTransaction(false);
        writeTM();
        return transaction.getXID();
     }
 
+    /**
+     * Start a read-only transaction. Read-only transactions are not
+     * written to the TM file, there is nothing to recover for them.
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public int startReadOnly() throws RemoteException {
+        return newTransaction(true).getXID();
+    }
+
+    /**
+     * Create a transaction with a new id
+     * @param readOnly
+     * @return transaction
+     */
+    private synchronized Transaction newTransaction(boolean readOnly) {
+        Transaction transaction = new Transaction(m_uniqId++, readOnly);
+        m_transactionMap.put(transaction.getXID(), transaction);
+        return transaction;
+    }
+
+    /**
+     * Check if a transaction is read-only
+     * @param id
+     * @return true if read-only
+     * @throws InvalidTransactionException
+     */
+    public boolean isReadOnly(int id) throws InvalidTransactionException {
+        return getTransaction(id).isReadOnly();
+    }
+
+    /**
+     * Nothing to do in TM, the RMs keep the snapshots
+     * @param transactionId
+     * @throws RemoteException
+     */
+    @Override
+    public void startSnapshot(int transactionId) throws RemoteException {
+        // Do nothing
+    }
+
     /**
      * Commit transaction
      * @param transactionId
@@ -120,8 +184,8 @@ public class TransactionManager implements ResourceManagerActions, Serializable
      * @throws RemoteException
      */
     @Override
-    public boolean voteRequest(int tid) throws RemoteException {
-        return false;
+    public int voteRequest(int tid) throws RemoteException {
+        return VOTE_NO;
     }
 
     /**
@@ -141,26 +205,34 @@ public class TransactionManager implements ResourceManagerActions, Serializable
     }
 
     /**
-     * Write transaction manager to file
+     * Write transaction manager to file. Returns once the current state,
+     * or a more recent one, is stored; with the group-fsync policy
+     * concurrent calls share the same write.
      */
-    public synchronized void writeTM() {
-        File tmFile = getTMFile();
-        try(FileOutputStream fos = new FileOutputStream(tmFile); ObjectOutputStream obj = new ObjectOutputStream(fos)) {
-            obj.writeObject(this);
-            logger.info("File " + tmFile.getAbsolutePath() + " updated!");
+    public void writeTM() {
+        DurableFile tmFile;
+        try {
+            synchronized(this) {
+                if(m_tmFile == null) {
+                    m_tmFile = new DurableFile(getTMFile());
+                }
+                tmFile = m_tmFile;
+                tmFile.update(DurableFile.serialize(this));
+            }
+            tmFile.sync();
         } catch (IOException e) {
-            logger.error("Error writing file " + tmFile.getAbsolutePath() + ". Message: " + e.getMessage());
+            logger.error("Error writing file " + getTMFile().getAbsolutePath() + ". Message: " + e.getMessage());
         }
     }
 
     /**
-     * Update last activity for this transcation
+     * Update last activity for this transcation. The time is not written
+     * to the TM file, transactions loaded from it start idle again.
      * @param id
      * @throws InvalidTransactionException
      */
     public void updateLastActive(int id) throws InvalidTransactionException {
         getTransaction(id).updateLastActive();
-        writeTM();
     }
 
     /**
@@ -170,7 +242,24 @@ public class TransactionManager implements ResourceManagerActions, Serializable
      * @throws InvalidTransactionException
      */
     public void addRM(int id, String rm) throws InvalidTransactionException {
-        getTransaction(id).addRM(rm);
-        writeTM();
+        Transaction transaction = getTransaction(id);
+        if(transaction.addRM(rm) && !transaction.isReadOnly()) {
+            writeTM();
+        }
+    }
+
+    /**
+     * Remove an RM from a transaction once it has nothing
+     * left to do for it (e.g. it voted read-only)
+     * @param id
+     * @param rm
+     * @throws InvalidTransactionException
+     */
+    public void removeRM(int id, String rm) throws InvalidTransactionException {
+        Transaction transaction = getTransaction(id);
+        transaction.removeRM(rm);
+        if(!transaction.isReadOnly()) {
+            writeTM();
+        }
     }
 }
\ No newline at end of file
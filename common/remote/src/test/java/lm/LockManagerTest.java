@@ -0,0 +1,488 @@
+package lm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private LockManager m_lockManager;
+
+    @Before
+    public void setUp() {
+        m_lockManager = new LockManager();
+    }
+
+    @After
+    public void tearDown() {
+        for(int xid = 1; xid <= 3; xid++) {
+            m_lockManager.UnlockAll(xid);
+        }
+        m_lockManager.close();
+    }
+
+    /**
+     * Check that a request was granted
+     * @param future
+     */
+    private static void assertGranted(CompletableFuture<Void> future) {
+        assertTrue("Lock request was not granted", future.isDone() && !future.isCompletedExceptionally());
+    }
+
+    /**
+     * Check that a request failed because its transaction was picked as a deadlock victim
+     * @param future
+     */
+    private static void assertDeadlock(CompletableFuture<Void> future) {
+        assertTrue("Lock request did not fail", future.isCompletedExceptionally());
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof DeadlockException);
+        }
+    }
+
+    /**
+     * Check that a request is still queued
+     * @param future
+     */
+    private static void assertWaiting(CompletableFuture<Void> future) {
+        assertFalse("Lock request was not queued", future.isDone());
+    }
+
+    @Test
+    public void sharedReadLocks_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        assertTrue(m_lockManager.Lock(2, "flight-1", LockManager.READ));
+        assertEquals(0, m_lockManager.getStats().getWaits());
+    }
+
+    @Test
+    public void exclusiveWriteLock_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        CompletableFuture<Void> read = m_lockManager.lockAsync(2, "flight-1", LockManager.READ);
+        assertWaiting(read);
+        m_lockManager.UnlockAll(1);
+        assertGranted(read);
+    }
+
+    @Test
+    public void distinctItemsDoNotConflict_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(2, "flight-2", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(3, "car-1", LockManager.WRITE));
+        assertEquals(0, m_lockManager.getStats().getWaits());
+    }
+
+    @Test
+    public void redundantRequest_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.getStats().getRedundantRequests() > 0);
+
+        // asking for a weaker lock must not downgrade the WRITE lock
+        assertWaiting(m_lockManager.lockAsync(2, "flight-1", LockManager.READ));
+    }
+
+    @Test
+    public void invalidRequest_test() {
+        assertFalse(m_lockManager.Lock(-1, "flight-1", LockManager.READ));
+        assertFalse(m_lockManager.Lock(1, null, LockManager.READ));
+        assertFalse(m_lockManager.Lock(1, "flight-1", 42));
+    }
+
+    @Test
+    public void unlockAllReleasesOnlyOwnLocks_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(1, "car-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(2, "room-1", LockManager.WRITE));
+        CompletableFuture<Void> car = m_lockManager.lockAsync(3, "car-1", LockManager.WRITE);
+        CompletableFuture<Void> room = m_lockManager.lockAsync(3, "room-1", LockManager.READ);
+        assertWaiting(car);
+        assertWaiting(room);
+
+        assertTrue(m_lockManager.UnlockAll(1));
+        assertGranted(car);
+        assertWaiting(room);
+        assertTrue(m_lockManager.Lock(3, "flight-1", LockManager.WRITE));
+    }
+
+    @Test
+    public void unlockAllWithoutLocks_test() {
+        assertTrue(m_lockManager.UnlockAll(1));
+        assertFalse(m_lockManager.UnlockAll(-1));
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.UnlockAll(1));
+        assertTrue(m_lockManager.UnlockAll(1));
+        assertTrue(m_lockManager.Lock(2, "flight-1", LockManager.WRITE));
+    }
+
+    @Test
+    public void holdersListed_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        m_lockManager.restore(2, "car-1", LockManager.WRITE);
+        CompletableFuture<Void> car = m_lockManager.lockAsync(3, "car-1", LockManager.READ);
+        assertWaiting(car);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), m_lockManager.getHolders());
+
+        assertTrue(m_lockManager.UnlockAll(3));
+        assertTrue(m_lockManager.UnlockAll(2));
+        assertEquals(new HashSet<>(Collections.singletonList(1)), m_lockManager.getHolders());
+    }
+
+    @Test
+    public void deadlockDetected_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(2, "car-1", LockManager.WRITE));
+        CompletableFuture<Void> car = m_lockManager.lockAsync(1, "car-1", LockManager.WRITE);
+        assertWaiting(car);
+
+        // closing the cycle aborts the youngest transaction right away
+        CompletableFuture<Void> flight = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        assertDeadlock(flight);
+        assertWaiting(car);
+        assertEquals(1, m_lockManager.getStats().getDeadlocks());
+
+        m_lockManager.UnlockAll(2);
+        assertGranted(car);
+    }
+
+    @Test
+    public void deadlockOnConversion_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        assertTrue(m_lockManager.Lock(2, "flight-1", LockManager.READ));
+        CompletableFuture<Void> first = m_lockManager.lockAsync(1, "flight-1", LockManager.WRITE);
+        assertWaiting(first);
+        try {
+            m_lockManager.Lock(2, "flight-1", LockManager.WRITE);
+            fail("Transaction 2 should have been aborted");
+        } catch (DeadlockException e) {
+            assertEquals(2, e.GetXId());
+        }
+        m_lockManager.UnlockAll(2);
+        assertGranted(first);
+    }
+
+    @Test
+    public void closeStopsDetector_test() throws InterruptedException {
+        m_lockManager.close();
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("Deadlock-detector") && thread.isAlive());
+        }
+
+        // the lock manager still works without the detector
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.UnlockAll(1));
+    }
+
+    @Test
+    public void fifoGrants_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        CompletableFuture<Void> write = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        assertWaiting(write);
+
+        // a reader arriving after the queued writer does not overtake it
+        CompletableFuture<Void> read = m_lockManager.lockAsync(3, "flight-1", LockManager.READ);
+        assertWaiting(read);
+
+        m_lockManager.UnlockAll(1);
+        assertGranted(write);
+        assertWaiting(read);
+
+        m_lockManager.UnlockAll(2);
+        assertGranted(read);
+    }
+
+    @Test
+    public void conversionSkipsQueue_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        CompletableFuture<Void> write = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        assertWaiting(write);
+
+        // the only holder converts its lock without waiting behind the queued writer
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertWaiting(write);
+
+        m_lockManager.UnlockAll(1);
+        assertGranted(write);
+    }
+
+    @Test
+    public void blockedThreadWakesUp_test() throws Exception {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        CompletableFuture<Boolean> locked = CompletableFuture.supplyAsync(
+                () -> m_lockManager.Lock(2, "flight-1", LockManager.WRITE));
+        Thread.sleep(100);
+        assertFalse(locked.isDone());
+
+        m_lockManager.UnlockAll(1);
+        assertTrue(locked.get(5, TimeUnit.SECONDS));
+        assertEquals(1, m_lockManager.getStats().getGrantsAfterWait());
+    }
+
+    @Test
+    public void asyncInvalidRequest_test() {
+        CompletableFuture<Void> future = m_lockManager.lockAsync(1, null, LockManager.READ);
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.join();
+            fail("Request should have failed");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertTrue(m_lockManager.lockAsync(1, "flight-1", LockManager.IX).isCompletedExceptionally());
+    }
+
+    @Test
+    public void asyncSeveralPendingRequests_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(1, "car-1", LockManager.WRITE));
+        CompletableFuture<Void> flight = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        CompletableFuture<Void> car = m_lockManager.lockAsync(2, "car-1", LockManager.WRITE);
+        CompletableFuture<Void> room = m_lockManager.lockAsync(2, "room-1", LockManager.WRITE);
+        assertWaiting(flight);
+        assertWaiting(car);
+        assertGranted(room);
+
+        m_lockManager.UnlockAll(1);
+        assertGranted(CompletableFuture.allOf(flight, car));
+    }
+
+    @Test
+    public void asyncCancelledOnRelease_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        CompletableFuture<Void> flight = m_lockManager.lockAsync(2, "flight-1", LockManager.READ);
+        assertWaiting(flight);
+
+        // releasing the locks of a waiting transaction fails its pending requests
+        m_lockManager.UnlockAll(2);
+        assertDeadlock(flight);
+        m_lockManager.UnlockAll(1);
+        assertTrue(m_lockManager.Lock(3, "flight-1", LockManager.WRITE));
+    }
+
+    @Test
+    public void typeLockBlocksItemWriters_test() {
+        assertTrue(m_lockManager.Lock(1, "flight", LockManager.READ));
+        assertTrue(m_lockManager.Lock(2, "flight-1", LockManager.READ));
+        CompletableFuture<Void> write = m_lockManager.lockAsync(2, "flight-2", LockManager.WRITE);
+        assertWaiting(write);
+
+        // other types are not affected
+        assertTrue(m_lockManager.Lock(2, "car-1", LockManager.WRITE));
+
+        m_lockManager.UnlockAll(1);
+        assertGranted(write);
+    }
+
+    @Test
+    public void itemWriterBlocksTypeLock_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-7", LockManager.WRITE));
+        CompletableFuture<Void> type = m_lockManager.lockAsync(2, "flight", LockManager.READ);
+        assertWaiting(type);
+        m_lockManager.UnlockAll(1);
+        assertGranted(type);
+
+        // the type lock covers its items
+        assertTrue(m_lockManager.Lock(2, "flight-7", LockManager.READ));
+        assertWaiting(m_lockManager.lockAsync(3, "flight-8", LockManager.WRITE));
+    }
+
+    @Test
+    public void restoredItemLockBlocksTypeLock_test() {
+        m_lockManager.restore(1, "flight-1", LockManager.WRITE);
+        CompletableFuture<Void> type = m_lockManager.lockAsync(2, "flight", LockManager.WRITE);
+        assertWaiting(type);
+        m_lockManager.UnlockAll(1);
+        assertGranted(type);
+    }
+
+    @Test
+    public void concurrentItemLockers_test() throws Exception {
+        final int threads = 8;
+        final int items = 200;
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            final int xid = 10 + t;
+            workers.add(CompletableFuture.runAsync(() -> {
+                for(int i = 0; i < items; i++) {
+                    assertTrue(m_lockManager.Lock(xid, "flight-" + (xid * items + i), LockManager.WRITE));
+                    assertTrue(m_lockManager.Lock(xid, "flight-" + i, LockManager.READ));
+                }
+                m_lockManager.UnlockAll(xid);
+            }));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        // item lockers of one type never wait for each other's intention locks
+        assertEquals(0, m_lockManager.getStats().getWaits());
+        assertEquals(0, m_lockManager.getStats().getDeadlocks());
+    }
+
+    @Test
+    public void updateLocks_test() {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.READ));
+        assertTrue(m_lockManager.Lock(2, "flight-1", LockManager.UPDATE));
+
+        // only one transaction may intend to write the item
+        CompletableFuture<Void> update = m_lockManager.lockAsync(3, "flight-1", LockManager.UPDATE);
+        assertWaiting(update);
+
+        // the update holder converts once the reader is gone
+        CompletableFuture<Void> write = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        assertWaiting(write);
+        m_lockManager.UnlockAll(1);
+        assertGranted(write);
+        assertWaiting(update);
+
+        m_lockManager.UnlockAll(2);
+        assertGranted(update);
+        assertEquals(0, m_lockManager.getStats().getDeadlocks());
+    }
+
+    @Test
+    public void waitDie_test() {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WAIT_DIE);
+        assertTrue(lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(lockManager.Lock(2, "car-1", LockManager.WRITE));
+
+        // a younger transaction dies instead of waiting for an older one
+        assertDeadlock(lockManager.lockAsync(2, "flight-1", LockManager.READ));
+
+        // an older transaction waits for a younger one
+        CompletableFuture<Void> car = lockManager.lockAsync(1, "car-1", LockManager.READ);
+        assertWaiting(car);
+        lockManager.UnlockAll(2);
+        assertGranted(car);
+        assertEquals(1, lockManager.getStats().getDeadlocks());
+    }
+
+    @Test
+    public void woundWaitCancelsWaitingVictim_test() {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WOUND_WAIT);
+        assertTrue(lockManager.Lock(1, "car-1", LockManager.WRITE));
+        assertTrue(lockManager.Lock(2, "flight-1", LockManager.WRITE));
+
+        // a younger transaction waits for an older one
+        CompletableFuture<Void> car = lockManager.lockAsync(2, "car-1", LockManager.WRITE);
+        assertWaiting(car);
+
+        // the older transaction wounds it and its pending request fails
+        CompletableFuture<Void> flight = lockManager.lockAsync(1, "flight-1", LockManager.WRITE);
+        assertDeadlock(car);
+        assertWaiting(flight);
+        lockManager.UnlockAll(2);
+        assertGranted(flight);
+    }
+
+    @Test
+    public void woundWaitAbortsIdleVictim_test() {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WOUND_WAIT);
+        List<Integer> aborted = new ArrayList<>();
+        lockManager.setAbortHandler(aborted::add);
+        assertTrue(lockManager.Lock(2, "flight-1", LockManager.WRITE));
+
+        // the younger transaction is not waiting, it is handed to the abort handler
+        CompletableFuture<Void> flight = lockManager.lockAsync(1, "flight-1", LockManager.READ);
+        assertWaiting(flight);
+        assertEquals(1, aborted.size());
+        assertEquals(2, (int) aborted.get(0));
+
+        // it cannot take new locks until it is aborted
+        assertDeadlock(lockManager.lockAsync(2, "car-1", LockManager.READ));
+        lockManager.UnlockAll(2);
+        assertGranted(flight);
+    }
+
+    @Test
+    public void contentionStats_test() throws InterruptedException {
+        assertTrue(m_lockManager.Lock(1, "flight-1", LockManager.WRITE));
+        assertTrue(m_lockManager.Lock(1, "car-1", LockManager.WRITE));
+
+        // the intention locks on the stripes are granted, the items are not
+        CompletableFuture<Void> flightWrite = m_lockManager.lockAsync(2, "flight-1", LockManager.WRITE);
+        CompletableFuture<Void> car = m_lockManager.lockAsync(2, "car-1", LockManager.WRITE);
+        CompletableFuture<Void> flightRead = m_lockManager.lockAsync(3, "flight-1", LockManager.READ);
+        assertWaiting(flightWrite);
+        assertWaiting(car);
+        assertWaiting(flightRead);
+
+        Thread.sleep(20);
+        m_lockManager.UnlockAll(1);
+        assertGranted(CompletableFuture.allOf(flightWrite, car));
+        assertWaiting(flightRead);
+        Thread.sleep(20);
+        m_lockManager.UnlockAll(2);
+        assertGranted(flightRead);
+
+        LockStats stats = m_lockManager.getStats();
+        assertEquals(10, stats.getRequests());
+        assertEquals(7, stats.getImmediateGrants());
+        assertEquals(3, stats.getWaits());
+        assertEquals(3, stats.getGrantsAfterWait());
+        assertEquals(0, stats.getDeadlocks());
+
+        // every request waited at least 20ms, the reader twice as long
+        assertTrue(stats.getWaitP50Micros() >= 20000);
+        assertTrue(stats.getWaitP50Micros() <= stats.getWaitP90Micros());
+        assertTrue(stats.getWaitP90Micros() <= stats.getWaitP99Micros());
+        assertTrue(stats.getWaitP99Micros() <= stats.getWaitMaxMicros());
+        assertTrue(stats.getWaitMaxMicros() >= 40000);
+
+        assertArrayEquals(new String[]{"flight-1=2", "car-1=1"}, stats.getHotKeys());
+
+        stats.reset();
+        assertEquals(0, stats.getRequests());
+        assertEquals(0, stats.getWaitMaxMicros());
+        assertEquals(0, stats.getHotKeys().length);
+    }
+
+    @Test
+    public void unlockAllRacesChainedRequest_test() throws Exception {
+        for(int i = 0; i < 2000; i++) {
+            int holder = 100 + 2 * i;
+            int xid = holder + 1;
+            assertTrue(m_lockManager.Lock(holder, "flight", LockManager.READ));
+            CompletableFuture<Void> write = m_lockManager.lockAsync(xid, "flight-1", LockManager.WRITE);
+            assertWaiting(write);
+
+            // the stripe may be granted while the transaction releases its locks, the
+            // item must then not be locked anymore
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            CompletableFuture<Void> release = CompletableFuture.runAsync(() -> {
+                await(barrier);
+                m_lockManager.UnlockAll(holder);
+            });
+            await(barrier);
+            m_lockManager.UnlockAll(xid);
+            release.get(10, TimeUnit.SECONDS);
+            assertTrue(write.isDone());
+            assertFalse("Transaction " + xid + " still holds a lock", m_lockManager.getHolders().contains(xid));
+        }
+    }
+
+    /**
+     * Wait for the other thread of a race
+     * @param barrier
+     */
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package storage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+
+    /**
+     * Call sync() from several threads at once
+     * @param groupCommit
+     * @param threads
+     * @return one future per thread
+     */
+    private static List<CompletableFuture<Void>> syncAll(GroupCommit groupCommit, int threads) {
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
+        for(int i = 0; i < threads; i++) {
+            syncs.add(CompletableFuture.runAsync(() -> {
+                try {
+                    groupCommit.sync();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+        return syncs;
+    }
+
+    @Test
+    public void concurrentSyncsShareBatches_test() throws Exception {
+        AtomicInteger syncs = new AtomicInteger();
+        GroupCommit groupCommit = new GroupCommit("Group-commit-test", () -> {
+            syncs.incrementAndGet();
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2000, 64);
+
+        List<CompletableFuture<Void>> requests = syncAll(groupCommit, 32);
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertTrue("Expected fewer syncs than requests, got " + syncs.get(), syncs.get() < 32);
+        assertEquals(syncs.get(), groupCommit.getSyncs());
+    }
+
+    @Test
+    public void fullBatchSyncsRightAway_test() throws Exception {
+        GroupCommit groupCommit = new GroupCommit("Group-commit-test", () -> { }, 10000000, 1);
+
+        // the window is ten seconds but every request fills a batch
+        long start = System.nanoTime();
+        groupCommit.sync();
+        groupCommit.sync();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, groupCommit.getSyncs());
+    }
+
+    @Test
+    public void failedSyncReportedToItsBatch_test() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        GroupCommit groupCommit = new GroupCommit("Group-commit-test", () -> {
+            if(fail.get()) {
+                throw new IOException("Disk full");
+            }
+        }, 0, 1);
+
+        try {
+            groupCommit.sync();
+            fail("Sync should have failed");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+
+        // a later batch is not affected
+        fail.set(false);
+        groupCommit.sync();
+    }
+}
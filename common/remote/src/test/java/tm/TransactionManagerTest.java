@@ -0,0 +1,76 @@
+package tm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class TransactionManagerTest {
+
+    @After
+    public void tearDown() {
+        TransactionManager.getTMFile().delete();
+    }
+
+    /**
+     * Read a transaction manager
+     * @param in
+     * @return transaction manager
+     */
+    private static TransactionManager read(InputStream in) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(in)) {
+            return (TransactionManager) ois.readObject();
+        }
+    }
+
+    @Test
+    public void readOriginalTMFile_test() throws Exception {
+        // TM file written by the first version of the transaction manager
+        TransactionManager tm = read(getClass().getResourceAsStream("TM_table_v1"));
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), tm.getTransactionsId());
+        assertEquals(new HashSet<>(Arrays.asList("flight", "car")), tm.getRMs(1));
+        assertEquals(new HashSet<>(Arrays.asList("room")), tm.getRMs(2));
+        assertFalse(tm.isReadOnly(1));
+        assertEquals(3, tm.startReadOnly());
+    }
+
+    @Test
+    public void writeAndRead_test() throws Exception {
+        TransactionManager tm = new TransactionManager();
+        int tid = tm.startReadOnly();
+        tm.addRM(tid, "car");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(tm);
+        }
+        TransactionManager copy = read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(copy.isReadOnly(tid));
+        assertEquals(new HashSet<>(Arrays.asList("car")), copy.getRMs(tid));
+    }
+
+    @Test
+    public void lastActiveNotWritten_test() throws Exception {
+        TransactionManager tm = new TransactionManager();
+        int tid = tm.start();
+        assertTrue(TransactionManager.getTMFile().delete());
+
+        // activity is only tracked in memory
+        Thread.sleep(20);
+        tm.updateLastActive(tid);
+        assertFalse(TransactionManager.getTMFile().exists());
+        assertTrue(tm.getTransactions().get(0).getIdleTime() < 20);
+
+        // enlisting an RM changes the state to recover
+        tm.addRM(tid, "flight");
+        assertTrue(TransactionManager.getTMFile().exists());
+    }
+}
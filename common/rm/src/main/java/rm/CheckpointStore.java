@@ -0,0 +1,354 @@
+package rm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import storage.DurableFile;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checkpoints of the heap items of a global table, stored as a base image
+ * and a sequence of deltas.
+ *
+ * A delta holds the items changed since the previous checkpoint, a removed
+ * item being written without value, so a checkpoint costs as much as what
+ * changed. Deltas are numbered and stored next to the base image as
+ * <base>.<number>. Once enough of them accumulate, a background compactor
+ * merges them into a new base image which records the number of the last
+ * delta it contains; older deltas are then deleted, and ignored if that did
+ * not happen before a crash.
+ *
+ * The base image and the deltas start with the header of ItemCodec.
+ */
+public class CheckpointStore {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(CheckpointStore.class);
+
+    // Number of deltas which triggers a compaction
+    private static final int MAX_DELTAS = 8;
+
+    // Base image
+    private File m_baseFile;
+
+    // Number of the next delta
+    private int m_nextDelta = 1;
+
+    // Number of the last delta merged into the base image
+    private volatile int m_merged = 0;
+
+    // Only one thread rewrites the base image at a time
+    private final Object m_baseLock = new Object();
+
+    // Background compaction
+    private ExecutorService m_compactor;
+    private AtomicBoolean m_compacting = new AtomicBoolean(false);
+
+    /**
+     * Construct a checkpoint store
+     * @param baseFile base image, deltas are stored next to it
+     */
+    public CheckpointStore(File baseFile) {
+        m_baseFile = baseFile;
+        m_compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Checkpoint-compactor-" + baseFile.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Check if there is a base image or a delta
+     * @return true if found
+     */
+    public boolean exists() {
+        return m_baseFile.exists() || !listDeltas().isEmpty();
+    }
+
+    /**
+     * Get the number of deltas not merged into the base image yet
+     * @return number of deltas
+     */
+    public synchronized int getDeltas() {
+        return m_nextDelta - 1 - m_merged;
+    }
+
+    /**
+     * Read the base image and apply the deltas which are not merged into it.
+     * The deltas are read in parallel with the base image and each other,
+     * then applied in order.
+     * @param pool pool reading the deltas
+     * @return heap items
+     * @throws IOException if a file cannot be read
+     */
+    public synchronized RMHashtable load(ForkJoinPool pool) throws IOException {
+        synchronized(m_baseLock) {
+            Map<Integer, ForkJoinTask<Map<String, RMItem>>> deltas = new TreeMap<>();
+            int last = 0;
+            for(Map.Entry<Integer, File> delta : listDeltas().entrySet()) {
+                File file = delta.getValue();
+                deltas.put(delta.getKey(), pool.submit(() -> readDelta(file)));
+                last = delta.getKey();
+            }
+
+            RMHashtable table = new RMHashtable();
+            int merged = readBase(table);
+            for(Map.Entry<Integer, ForkJoinTask<Map<String, RMItem>>> delta : deltas.entrySet()) {
+                if(delta.getKey() > merged) {
+                    applyDelta(join(delta.getValue()), table);
+                }
+            }
+            last = Math.max(last, merged);
+            deleteDeltas(merged);
+            m_merged = merged;
+            m_nextDelta = last + 1;
+            return table;
+        }
+    }
+
+    /**
+     * Write a delta and start a compaction if enough deltas accumulated
+     * @param changes changed items, a null item stands for a removed one
+     * @throws IOException if the delta cannot be written
+     */
+    public synchronized void writeDelta(Map<String, RMItem> changes) throws IOException {
+        File file = getDeltaFile(m_nextDelta);
+        File tmp = new File(file.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            ItemCodec.writeHeader(out);
+            out.writeInt(changes.size());
+            for(Map.Entry<String, RMItem> entry : changes.entrySet()) {
+                ItemCodec.writeString(out, entry.getKey());
+                out.writeBoolean(entry.getValue() != null);
+                if(entry.getValue() != null) {
+                    ItemCodec.writeItem(out, entry.getValue());
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        DurableFile.replace(tmp, file);
+        m_nextDelta++;
+
+        if(getDeltas() >= MAX_DELTAS && m_compacting.compareAndSet(false, true)) {
+            m_compactor.execute(this::compactDeltas);
+        }
+    }
+
+    /**
+     * Replace the base image by a full table, containing every delta
+     * written so far
+     * @param table heap items
+     * @throws IOException if the base image cannot be written
+     */
+    public synchronized void writeBase(RMHashtable table) throws IOException {
+        synchronized(m_baseLock) {
+            int last = m_nextDelta - 1;
+            replaceBase(table, last);
+            deleteDeltas(last);
+        }
+    }
+
+    /**
+     * Merge the deltas into the base image until few enough are left. The
+     * deltas written while a compaction runs are merged by the next one.
+     * After a failure, the next delta written tries again.
+     */
+    private void compactDeltas() {
+        boolean failed = false;
+        do {
+            try {
+                int last;
+                while(!failed && (last = getLastDeltaToCompact()) > 0) {
+                    failed = !compact(last);
+                }
+            } finally {
+                m_compacting.set(false);
+            }
+        } while(!failed && getLastDeltaToCompact() > 0 && m_compacting.compareAndSet(false, true));
+    }
+
+    /**
+     * Get the number of the last delta if enough deltas accumulated
+     * @return last delta to merge, or 0 if no compaction is due
+     */
+    private synchronized int getLastDeltaToCompact() {
+        return getDeltas() >= MAX_DELTAS ? m_nextDelta - 1 : 0;
+    }
+
+    /**
+     * Merge the deltas up to a number into the base image
+     * @param last number of the last delta to merge
+     * @return false if the compaction failed
+     */
+    private boolean compact(int last) {
+        synchronized(m_baseLock) {
+            if(last <= m_merged) {
+                return true;
+            }
+            try {
+                RMHashtable table = new RMHashtable();
+                int merged = readBase(table);
+                int deltas = 0;
+                for(Map.Entry<Integer, File> delta : listDeltas().entrySet()) {
+                    if(delta.getKey() > merged && delta.getKey() <= last) {
+                        applyDelta(readDelta(delta.getValue()), table);
+                        deltas++;
+                    }
+                }
+                replaceBase(table, last);
+                deleteDeltas(last);
+                logger.info("Compacted " + deltas + " deltas into " + m_baseFile.getAbsolutePath());
+                return true;
+            } catch (IOException e) {
+                logger.error("Error compacting " + m_baseFile.getAbsolutePath() + ". Message: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Write a new base image then replace the old one
+     * @param table heap items
+     * @param last number of the last delta contained in the table
+     * @throws IOException
+     */
+    private void replaceBase(RMHashtable table, int last) throws IOException {
+        File tmp = new File(m_baseFile.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            ItemCodec.writeHeader(out);
+            out.writeInt(last);
+            ItemCodec.writeTable(out, table);
+            out.flush();
+            fos.getFD().sync();
+        }
+        DurableFile.replace(tmp, m_baseFile);
+        m_merged = last;
+    }
+
+    /**
+     * Read the base image into a table
+     * @param table
+     * @return number of the last delta merged into the base image
+     * @throws IOException
+     */
+    private int readBase(RMHashtable table) throws IOException {
+        if(!m_baseFile.exists()) {
+            return 0;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_baseFile)))) {
+            ItemCodec.readHeader(in);
+            int merged = in.readInt();
+            table.putAll(ItemCodec.readTable(in));
+            return merged;
+        }
+    }
+
+    /**
+     * Read a delta
+     * @param file
+     * @return key -> item, null for a removed item
+     * @throws IOException
+     */
+    private static Map<String, RMItem> readDelta(File file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ItemCodec.readHeader(in);
+            int size = in.readInt();
+            Map<String, RMItem> changes = new HashMap<>();
+            for(int i = 0; i < size; i++) {
+                String key = ItemCodec.readString(in);
+                changes.put(key, in.readBoolean() ? ItemCodec.readItem(in) : null);
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * Apply a delta to a table
+     * @param changes
+     * @param table
+     */
+    private static void applyDelta(Map<String, RMItem> changes, RMHashtable table) {
+        for(Map.Entry<String, RMItem> change : changes.entrySet()) {
+            if(change.getValue() == null) {
+                table.remove(change.getKey());
+            } else {
+                table.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    /**
+     * Wait for a delta read by the pool
+     * @param task
+     * @return delta
+     * @throws IOException if it could not be read
+     */
+    private static Map<String, RMItem> join(ForkJoinTask<Map<String, RMItem>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading a delta", e);
+        }
+    }
+
+    /**
+     * Delete the deltas up to a number
+     * @param last
+     */
+    private void deleteDeltas(int last) {
+        for(Map.Entry<Integer, File> delta : listDeltas().entrySet()) {
+            if(delta.getKey() <= last && !delta.getValue().delete()) {
+                logger.error("File " + delta.getValue().getAbsolutePath() + " could not be deleted");
+            }
+        }
+    }
+
+    /**
+     * List the deltas on disk
+     * @return delta number -> file, in order
+     */
+    private Map<Integer, File> listDeltas() {
+        Map<Integer, File> deltas = new TreeMap<>();
+        File dir = m_baseFile.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return deltas;
+        }
+        String prefix = m_baseFile.getName() + ".";
+        for(File file : files) {
+            String fileName = file.getName();
+            if(!fileName.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                deltas.put(Integer.parseInt(fileName.substring(prefix.length())), file);
+            } catch (NumberFormatException e) {
+                // Temporary file
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Get the file of a delta
+     * @param number
+     * @return delta file
+     */
+    private File getDeltaFile(int number) {
+        return new File(m_baseFile.getPath() + "." + number);
+    }
+}
@@ -0,0 +1,151 @@
+package rm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts the data directory of a resource manager (data_<name>/) to the
+ * current storage format: tables stored one Java-serialized file per
+ * transaction are moved to the redo log, and the flights, cars and rooms
+ * are moved to the inventory store.
+ *
+ * The resource manager converts its directory when it starts; this class
+ * can also be run on stopped resource managers:
+ *
+ *     java rm.DataConverter data_car data_flight data_room
+ */
+public class DataConverter {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(DataConverter.class);
+
+    // Prefix of the data directories
+    private static final String DIR_PREFIX = "data_";
+
+    // Item standing for a deleted one in the old table files
+    private static final int DELETED_CUSTOMER_ID = Integer.MIN_VALUE;
+
+    private DataConverter() {}
+
+    public static void main(String[] args) {
+        if(args.length == 0) {
+            System.err.println("Wrong usage");
+            System.out.println("    Usage: java rm.DataConverter data_<name> [data_<name> ...]");
+            System.exit(1);
+        }
+        for(String arg : args) {
+            File dir = new File(arg);
+            if(!dir.isDirectory() || !dir.getName().startsWith(DIR_PREFIX)) {
+                System.err.println(arg + " is not a data_<name> directory");
+                continue;
+            }
+            String name = dir.getName().substring(DIR_PREFIX.length());
+            RedoLog redoLog = new RedoLog(RedoLog.getLogFile(dir, name), RedoLog.getCheckpointFile(dir, name));
+            try {
+                GlobalTable global = new GlobalTable(new InventoryStore(InventoryStore.getFile(dir, name)));
+                int tables = convertTables(dir, name, redoLog, global);
+                RedoLog.Recovery recovery = redoLog.recover(global);
+                System.out.println(dir.getPath() + ": " + tables + " table files converted, "
+                        + recovery.getGlobal().size() + " items and " + recovery.getTables().size()
+                        + " unfinished transactions stored");
+            } catch (IOException e) {
+                System.err.println("Failed to convert " + dir.getPath() + ". Message: " + e.getMessage());
+            } finally {
+                redoLog.close();
+            }
+        }
+    }
+
+    /**
+     * Move the tables stored one file per transaction to the redo log.
+     * Nothing is done if the redo log exists already.
+     * @param dir data directory
+     * @param name name of the resource manager
+     * @param redoLog redo log of the resource manager, not recovered yet
+     * @param global global table of the resource manager, not recovered yet
+     * @return number of table files converted
+     * @throws IOException if a table file cannot be read or the redo log
+     *                     cannot be written
+     */
+    public static int convertTables(File dir, String name, RedoLog redoLog, GlobalTable global)
+            throws IOException {
+        if(redoLog.exists() || !dir.isDirectory()) {
+            return 0;
+        }
+
+        // Table files are named <name>_<transaction id>, -1 for the global table
+        Map<Integer, File> files = new TreeMap<>();
+        for(File file : dir.listFiles()) {
+            String fileName = file.getName();
+            if(!fileName.startsWith(name + "_")) {
+                continue;
+            }
+            try {
+                files.put(Integer.parseInt(fileName.substring(name.length() + 1)), file);
+            } catch (NumberFormatException e) {
+                // Not a table file
+            }
+        }
+        if(files.isEmpty()) {
+            return 0;
+        }
+
+        // Files which are transactions are logged after the checkpoint
+        File globalFile = files.remove(-1);
+        if(globalFile != null) {
+            for(Map.Entry<String, RMItem> item : readTable(globalFile).entrySet()) {
+                global.put(item.getKey(), item.getValue());
+            }
+        }
+        redoLog.checkpoint(global);
+        for(Map.Entry<Integer, File> file : files.entrySet()) {
+            for(Map.Entry<String, RMItem> item : readTable(file.getValue()).entrySet()) {
+                if(isDeleted(item.getValue())) {
+                    redoLog.delete(file.getKey(), item.getKey());
+                } else {
+                    redoLog.put(file.getKey(), item.getKey(), item.getValue());
+                }
+            }
+        }
+
+        // Old files are only deleted once everything is in the log
+        redoLog.force();
+        if(globalFile != null) {
+            files.put(-1, globalFile);
+        }
+        for(File file : files.values()) {
+            if(!file.delete()) {
+                logger.error("File " + file.getAbsolutePath() + " could not be deleted");
+            }
+        }
+        logger.info("Converted " + files.size() + " table files of " + dir.getAbsolutePath());
+        return files.size();
+    }
+
+    /**
+     * Read a Java-serialized table file
+     * @param file
+     * @return table
+     * @throws IOException
+     */
+    private static RMHashtable readTable(File file) throws IOException {
+        try(ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (RMHashtable) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("File " + file.getAbsolutePath() + " does not contain a table", e);
+        }
+    }
+
+    /**
+     * Check if an item of an old table file marks a deleted item
+     * @param item
+     * @return true if deleted
+     */
+    private static boolean isDeleted(RMItem item) {
+        return item instanceof Customer && ((Customer) item).getID() == DELETED_CUSTOMER_ID;
+    }
+}
@@ -0,0 +1,149 @@
+package rm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Committed state of a resource manager. Flights, cars and rooms are kept
+ * in the memory-mapped InventoryStore and updated in place; customers, and
+ * items the store cannot hold, are kept on the heap and written with the
+ * checkpoints of the redo log. Without a store, every item is kept on the
+ * heap.
+ *
+ * The keys of the heap items changed since the last checkpoint are tracked
+ * so that a checkpoint only writes those.
+ */
+public class GlobalTable {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(GlobalTable.class);
+
+    // Flights, cars and rooms, or null
+    private InventoryStore m_store;
+
+    // Everything else
+    private RMHashtable m_heap = new RMHashtable();
+
+    // Heap keys changed since the last checkpoint
+    private Set<String> m_dirty = new HashSet<>();
+
+    /**
+     * Construct a global table
+     * @param store store of the flights, cars and rooms, or null
+     */
+    public GlobalTable(InventoryStore store) {
+        m_store = store;
+    }
+
+    /**
+     * Get an item
+     * @param key
+     * @return item, or null if not found
+     */
+    public RMItem get(String key) {
+        RMItem item = m_heap.get(key);
+        return item != null || m_store == null ? item : m_store.get(key);
+    }
+
+    /**
+     * Check if an item exists
+     * @param key
+     * @return true if found
+     */
+    public boolean containsKey(String key) {
+        return m_heap.containsKey(key) || (m_store != null && m_store.containsKey(key));
+    }
+
+    /**
+     * Add or replace an item
+     * @param key
+     * @param item
+     */
+    public synchronized void put(String key, RMItem item) {
+        if(m_store != null && InventoryStore.accepts(key, item)) {
+            try {
+                m_store.put(key, item);
+                if(m_heap.remove(key) != null) {
+                    m_dirty.add(key);
+                }
+                return;
+            } catch (IOException e) {
+                logger.error("Failed to store " + key + " in the inventory store. Message: " + e.getMessage());
+            }
+        }
+        m_heap.put(key, item);
+        m_dirty.add(key);
+        if(m_store != null) {
+            m_store.remove(key);
+        }
+    }
+
+    /**
+     * Remove an item
+     * @param key
+     */
+    public synchronized void remove(String key) {
+        if(m_heap.remove(key) != null) {
+            m_dirty.add(key);
+        }
+        if(m_store != null) {
+            m_store.remove(key);
+        }
+    }
+
+    /**
+     * Get the number of items
+     * @return number of items
+     */
+    public int size() {
+        return m_heap.size() + (m_store != null ? m_store.size() : 0);
+    }
+
+    /**
+     * Get the items which are not in the inventory store
+     * @return heap items
+     */
+    public RMHashtable getHeapItems() {
+        return m_heap;
+    }
+
+    /**
+     * Get the heap items changed since the last checkpoint
+     * @return key -> item, null for an item which left the heap
+     */
+    public synchronized Map<String, RMItem> getDirtyItems() {
+        Map<String, RMItem> items = new HashMap<>();
+        for(String key : m_dirty) {
+            items.put(key, m_heap.get(key));
+        }
+        return items;
+    }
+
+    /**
+     * Forget that items were changed, once they are checkpointed
+     * @param keys keys checkpointed, null for all
+     */
+    public synchronized void clearDirty(Collection<String> keys) {
+        if(keys == null) {
+            m_dirty.clear();
+        } else {
+            m_dirty.removeAll(keys);
+        }
+    }
+
+    /**
+     * Write the changes of the inventory store to disk
+     */
+    public void force() {
+        if(m_store != null) {
+            m_store.force();
+        }
+    }
+}
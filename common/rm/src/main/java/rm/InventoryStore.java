@@ -0,0 +1,409 @@
+package rm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import storage.DurableFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped store of the committed flights, cars and rooms.
+ *
+ * The file is a header followed by an open addressing hash table of fixed
+ * size records: a record holds the state of the slot, the type of the item,
+ * its key and location, and its count, price and reserved count. A key is
+ * looked up by probing from the slot of its hash, so the file is its own
+ * index and opening it only maps it. Records are updated in place; when the
+ * table is too full it is rehashed into a new file, twice as large unless
+ * most of the full slots were deleted.
+ *
+ * Items with a key or location too long for a record are not stored here.
+ * Writes reach the disk when the operating system flushes the pages or on
+ * force(); the redo log is what makes them durable.
+ */
+public class InventoryStore {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(InventoryStore.class);
+
+    // Header: magic, version, capacity, used slots, deleted slots
+    private static final int MAGIC = 0x524d4956;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int DELETED_OFFSET = 16;
+
+    // Record: state, type, key length, location length, key, location, count, price, reserved
+    private static final int MAX_KEY = 40;
+    private static final int MAX_LOCATION = 40;
+    private static final int KEY_OFFSET = 4;
+    private static final int LOCATION_OFFSET = KEY_OFFSET + MAX_KEY;
+    private static final int COUNT_OFFSET = LOCATION_OFFSET + MAX_LOCATION;
+    private static final int PRICE_OFFSET = COUNT_OFFSET + 4;
+    private static final int RESERVED_OFFSET = PRICE_OFFSET + 4;
+    private static final int RECORD_SIZE = 96;
+
+    // Slot states
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    // Item types
+    private static final byte FLIGHT = 1;
+    private static final byte CAR = 2;
+    private static final byte HOTEL = 3;
+
+    // Sizes
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+    private static final double MAX_LOAD = 0.7;
+
+    // Mapped file
+    private File m_file;
+    private MappedByteBuffer m_buffer;
+    private int m_capacity;
+
+    /**
+     * Get the store file of a resource manager
+     * @param dir data directory
+     * @param name name of the resource manager
+     * @return store file
+     */
+    public static File getFile(File dir, String name) {
+        return new File(dir, name + "_inventory");
+    }
+
+    /**
+     * Open a store, creating the file if needed
+     * @param file
+     * @throws IOException
+     */
+    public InventoryStore(File file) throws IOException {
+        m_file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if(!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+        }
+        if(file.exists() && file.length() >= HEADER_SIZE) {
+            map(file);
+            if(m_buffer.getInt(0) != MAGIC || m_buffer.getInt(4) != VERSION) {
+                throw new IOException("File " + file.getAbsolutePath() + " is not an inventory store");
+            }
+            m_capacity = m_buffer.getInt(CAPACITY_OFFSET);
+            logger.info("Inventory store " + file.getAbsolutePath() + " mapped: " + size() + " items");
+        } else {
+            create(file, INITIAL_CAPACITY);
+            map(file);
+            m_capacity = INITIAL_CAPACITY;
+        }
+    }
+
+    /**
+     * Check if an item can be kept in the store
+     * @param key
+     * @param item
+     * @return true if it can
+     */
+    public static boolean accepts(String key, RMItem item) {
+        return typeOf(item) != 0
+                && key.getBytes(StandardCharsets.UTF_8).length <= MAX_KEY
+                && ((ReservableItem) item).getLocation().getBytes(StandardCharsets.UTF_8).length <= MAX_LOCATION;
+    }
+
+    /**
+     * Get an item
+     * @param key
+     * @return a new copy of the item, or null if not found
+     */
+    public synchronized RMItem get(String key) {
+        int slot = find(key.getBytes(StandardCharsets.UTF_8));
+        return slot < 0 ? null : read(offset(slot));
+    }
+
+    /**
+     * Check if an item is stored
+     * @param key
+     * @return true if found
+     */
+    public synchronized boolean containsKey(String key) {
+        return find(key.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+     * Store an item, see accepts()
+     * @param key
+     * @param item
+     * @throws IOException if the store could not grow
+     */
+    public synchronized void put(String key, RMItem item) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = find(keyBytes);
+        if(slot < 0) {
+            if(used() + deleted() + 1 > m_capacity * MAX_LOAD) {
+                grow();
+            }
+            slot = freeSlot(keyBytes);
+            if(m_buffer.get(offset(slot)) == DELETED) {
+                m_buffer.putInt(DELETED_OFFSET, deleted() - 1);
+            }
+            m_buffer.putInt(SIZE_OFFSET, used() + 1);
+        }
+        write(offset(slot), keyBytes, (ReservableItem) item);
+    }
+
+    /**
+     * Remove an item
+     * @param key
+     * @return true if it was stored
+     */
+    public synchronized boolean remove(String key) {
+        int slot = find(key.getBytes(StandardCharsets.UTF_8));
+        if(slot < 0) {
+            return false;
+        }
+        m_buffer.put(offset(slot), DELETED);
+        m_buffer.putInt(SIZE_OFFSET, used() - 1);
+        m_buffer.putInt(DELETED_OFFSET, deleted() + 1);
+        return true;
+    }
+
+    /**
+     * Get the number of items
+     * @return number of items
+     */
+    public synchronized int size() {
+        return used();
+    }
+
+    /**
+     * Write the changed pages to disk
+     */
+    public synchronized void force() {
+        m_buffer.force();
+    }
+
+    /**
+     * Find the slot of a key
+     * @param keyBytes
+     * @return slot, or -1 if not found
+     */
+    private int find(byte[] keyBytes) {
+        int slot = home(keyBytes);
+        for(int probe = 0; probe < m_capacity; probe++) {
+            int offset = offset(slot);
+            byte state = m_buffer.get(offset);
+            if(state == EMPTY) {
+                return -1;
+            }
+            if(state == USED && keyEquals(offset, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) % m_capacity;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first free slot for a key which is not stored
+     * @param keyBytes
+     * @return slot
+     */
+    private int freeSlot(byte[] keyBytes) {
+        int slot = home(keyBytes);
+        while(m_buffer.get(offset(slot)) == USED) {
+            slot = (slot + 1) % m_capacity;
+        }
+        return slot;
+    }
+
+    /**
+     * Rehash the items into a new file, then map it instead. The file is
+     * twice as large unless most of the load is deleted slots, which are
+     * dropped by the rehash.
+     * @throws IOException
+     */
+    private void grow() throws IOException {
+        int capacity = m_capacity;
+        if(used() + 1 > m_capacity * MAX_LOAD / 2) {
+            if(m_capacity >= MAX_CAPACITY) {
+                throw new IOException("Inventory store " + m_file.getAbsolutePath() + " is full");
+            }
+            capacity = (int) Math.min((long) m_capacity * 2, MAX_CAPACITY);
+        }
+        File tmp = new File(m_file.getPath() + ".tmp");
+        create(tmp, capacity);
+
+        MappedByteBuffer old = m_buffer;
+        int oldCapacity = m_capacity;
+        map(tmp);
+        m_capacity = capacity;
+        byte[] record = new byte[RECORD_SIZE];
+        int used = 0;
+        for(int slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer src = old.duplicate();
+            src.position(offset(slot));
+            src.get(record);
+            if(record[0] != USED) {
+                continue;
+            }
+            byte[] keyBytes = new byte[record[2]];
+            System.arraycopy(record, KEY_OFFSET, keyBytes, 0, keyBytes.length);
+            ByteBuffer dst = m_buffer.duplicate();
+            dst.position(offset(freeSlot(keyBytes)));
+            dst.put(record);
+            used++;
+        }
+        m_buffer.putInt(SIZE_OFFSET, used);
+        m_buffer.force();
+        DurableFile.replace(tmp, m_file);
+        logger.info("Inventory store " + m_file.getAbsolutePath() + " rehashed into " + capacity + " slots");
+    }
+
+    /**
+     * Create an empty store file
+     * @param file
+     * @param capacity
+     * @throws IOException
+     */
+    private static void create(File file, int capacity) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(capacity);
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * Map a store file
+     * @param file
+     * @throws IOException
+     */
+    private void map(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            m_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    /**
+     * Read the item of a record
+     * @param offset
+     * @return item
+     */
+    private RMItem read(int offset) {
+        byte type = m_buffer.get(offset + 1);
+        byte[] location = new byte[m_buffer.get(offset + 3)];
+        ByteBuffer src = m_buffer.duplicate();
+        src.position(offset + LOCATION_OFFSET);
+        src.get(location);
+        String loc = new String(location, StandardCharsets.UTF_8);
+        int count = m_buffer.getInt(offset + COUNT_OFFSET);
+        int price = m_buffer.getInt(offset + PRICE_OFFSET);
+        ReservableItem item = type == FLIGHT ? new Flight(Integer.parseInt(loc), count, price)
+                : type == CAR ? new Car(loc, count, price) : new Hotel(loc, count, price);
+        item.setReserved(m_buffer.getInt(offset + RESERVED_OFFSET));
+        return item;
+    }
+
+    /**
+     * Write an item into a record, the state last
+     * @param offset
+     * @param keyBytes
+     * @param item
+     */
+    private void write(int offset, byte[] keyBytes, ReservableItem item) {
+        byte[] location = item.getLocation().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer dst = m_buffer.duplicate();
+        dst.position(offset + 1);
+        dst.put(typeOf(item));
+        dst.put((byte) keyBytes.length);
+        dst.put((byte) location.length);
+        dst.put(keyBytes);
+        dst.position(offset + LOCATION_OFFSET);
+        dst.put(location);
+        m_buffer.putInt(offset + COUNT_OFFSET, item.getCount());
+        m_buffer.putInt(offset + PRICE_OFFSET, item.getPrice());
+        m_buffer.putInt(offset + RESERVED_OFFSET, item.getReserved());
+        m_buffer.put(offset, USED);
+    }
+
+    /**
+     * Compare the key of a record
+     * @param offset
+     * @param keyBytes
+     * @return true if equal
+     */
+    private boolean keyEquals(int offset, byte[] keyBytes) {
+        if(m_buffer.get(offset + 2) != keyBytes.length) {
+            return false;
+        }
+        for(int i = 0; i < keyBytes.length; i++) {
+            if(m_buffer.get(offset + KEY_OFFSET + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the slot a key hashes to
+     * @param keyBytes
+     * @return slot
+     */
+    private int home(byte[] keyBytes) {
+        int hash = 0;
+        for(byte b : keyBytes) {
+            hash = 31 * hash + b;
+        }
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % m_capacity;
+    }
+
+    /**
+     * Get the type of an item
+     * @param item
+     * @return type, 0 if the store does not keep it
+     */
+    private static byte typeOf(RMItem item) {
+        if(item == null) {
+            return 0;
+        }
+        Class<?> itemClass = item.getClass();
+        return itemClass == Flight.class ? FLIGHT : itemClass == Car.class ? CAR
+                : itemClass == Hotel.class ? HOTEL : 0;
+    }
+
+    /**
+     * Get the position of a record in the file
+     * @param slot
+     * @return offset
+     */
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Get the number of used slots
+     * @return used slots
+     */
+    private int used() {
+        return m_buffer.getInt(SIZE_OFFSET);
+    }
+
+    /**
+     * Get the number of deleted slots, which still have to be probed
+     * @return deleted slots
+     */
+    private int deleted() {
+        return m_buffer.getInt(DELETED_OFFSET);
+    }
+}
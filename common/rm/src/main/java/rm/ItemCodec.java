@@ -0,0 +1,267 @@
+package rm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Binary format of the items and tables stored by a resource manager.
+ *
+ * An item is a one byte tag followed by its fields: ints are written with
+ * four bytes and strings as their UTF-8 length followed by the bytes. A
+ * customer is followed by its reservations. A table is its number of entries
+ * followed by each key and item; the key is written empty when it is the
+ * key of the item itself, which is the case of every item stored by a
+ * resource manager. Files start with a magic number and the format version,
+ * see writeHeader(); files of any other version are rejected.
+ *
+ * Items of any other class fall back to Java serialization.
+ */
+public class ItemCodec {
+
+    // Current version of the format
+    public static final int VERSION = 2;
+
+    // Magic number starting the files of a resource manager
+    private static final int MAGIC = 0x524d4442;
+
+    // Item tags
+    private static final byte SERIALIZED = 0;
+    private static final byte FLIGHT = 1;
+    private static final byte CAR = 2;
+    private static final byte HOTEL = 3;
+    private static final byte CUSTOMER = 4;
+    private static final byte RESERVED_ITEM = 5;
+
+    private ItemCodec() {}
+
+    /**
+     * Write the magic number and the format version
+     * @param out
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Read the magic number and the format version
+     * @param in
+     * @throws IOException if there is no header or the version is not the
+     *                     current one
+     */
+    public static void readHeader(DataInput in) throws IOException {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Missing header");
+        }
+        int version = in.readInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+    }
+
+    /**
+     * Encode an item
+     * @param item
+     * @return bytes
+     * @throws IOException
+     */
+    public static byte[] encode(RMItem item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeItem(out, item);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an item
+     * @param bytes
+     * @return item
+     * @throws IOException
+     */
+    public static RMItem decode(byte[] bytes) throws IOException {
+        return readItem(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Write a table
+     * @param out
+     * @param table
+     * @throws IOException
+     */
+    public static void writeTable(DataOutput out, RMHashtable table) throws IOException {
+        out.writeInt(table.size());
+        for(Map.Entry<String, RMItem> entry : table.entrySet()) {
+            writeString(out, entry.getKey().equals(keyOf(entry.getValue())) ? "" : entry.getKey());
+            writeItem(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Read a table
+     * @param in
+     * @return table
+     * @throws IOException
+     */
+    public static RMHashtable readTable(DataInput in) throws IOException {
+        RMHashtable table = new RMHashtable();
+        int size = in.readInt();
+        for(int i = 0; i < size; i++) {
+            String key = readString(in);
+            RMItem item = readItem(in);
+            table.put(key.isEmpty() ? keyOf(item) : key, item);
+        }
+        return table;
+    }
+
+    /**
+     * Write an item
+     * @param out
+     * @param item
+     * @throws IOException
+     */
+    public static void writeItem(DataOutput out, RMItem item) throws IOException {
+        if(item instanceof ReservableItem) {
+            ReservableItem reservable = (ReservableItem) item;
+            out.writeByte(item instanceof Flight ? FLIGHT : item instanceof Car ? CAR : HOTEL);
+            writeString(out, reservable.getLocation());
+            out.writeInt(reservable.getCount());
+            out.writeInt(reservable.getPrice());
+            out.writeInt(reservable.getReserved());
+        } else if(item instanceof Customer) {
+            Customer customer = (Customer) item;
+            out.writeByte(CUSTOMER);
+            out.writeInt(customer.getID());
+            out.writeInt(customer.getReservations().size());
+            for(RMItem reserved : customer.getReservations().values()) {
+                writeReservedItem(out, (ReservedItem) reserved);
+            }
+        } else if(item instanceof ReservedItem) {
+            out.writeByte(RESERVED_ITEM);
+            writeReservedItem(out, (ReservedItem) item);
+        } else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(ObjectOutputStream obj = new ObjectOutputStream(bytes)) {
+                obj.writeObject(item);
+            }
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Read an item
+     * @param in
+     * @return item
+     * @throws IOException
+     */
+    public static RMItem readItem(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case FLIGHT:
+            case CAR:
+            case HOTEL:
+                String location = readString(in);
+                int count = in.readInt();
+                int price = in.readInt();
+                ReservableItem reservable = tag == FLIGHT ? new Flight(Integer.parseInt(location), count, price)
+                        : tag == CAR ? new Car(location, count, price) : new Hotel(location, count, price);
+                reservable.setReserved(in.readInt());
+                return reservable;
+            case CUSTOMER:
+                Customer customer = new Customer(in.readInt());
+                int reservations = in.readInt();
+                for(int i = 0; i < reservations; i++) {
+                    ReservedItem reserved = readReservedItem(in);
+                    customer.getReservations().put(reserved.getKey(), reserved);
+                }
+                return customer;
+            case RESERVED_ITEM:
+                return readReservedItem(in);
+            case SERIALIZED:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (RMItem) ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown item class", e);
+                }
+            default:
+                throw new IOException("Unknown item tag " + tag);
+        }
+    }
+
+    /**
+     * Write a string as its UTF-8 length and bytes
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString()
+     * @param in
+     * @return string
+     * @throws IOException
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the key of an item
+     * @param item
+     * @return key, or null for an item without key
+     */
+    private static String keyOf(RMItem item) {
+        if(item instanceof ReservableItem) {
+            return ((ReservableItem) item).getKey();
+        } else if(item instanceof Customer) {
+            return ((Customer) item).getKey();
+        } else if(item instanceof ReservedItem) {
+            return ((ReservedItem) item).getKey();
+        }
+        return null;
+    }
+
+    /**
+     * Write the fields of a reserved item
+     * @param out
+     * @param item
+     * @throws IOException
+     */
+    private static void writeReservedItem(DataOutput out, ReservedItem item) throws IOException {
+        writeString(out, item.getReservableItemKey());
+        writeString(out, item.getLocation());
+        out.writeInt(item.getCount());
+        out.writeInt(item.getPrice());
+    }
+
+    /**
+     * Read the fields of a reserved item
+     * @param in
+     * @return reserved item
+     * @throws IOException
+     */
+    private static ReservedItem readReservedItem(DataInput in) throws IOException {
+        String key = readString(in);
+        String location = readString(in);
+        int count = in.readInt();
+        int price = in.readInt();
+        return new ReservedItem(key, location, count, price);
+    }
+}
@@ -0,0 +1,114 @@
+package rm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and volume of the recovery of a resource manager: loading the
+ * checkpoints, reading and decoding the redo log, applying it, and
+ * locking again the items written by unfinished transactions. Loading
+ * the checkpoints overlaps with reading the log.
+ */
+public class RecoveryStats implements RecoveryStatsMBean {
+
+    // Durations
+    private volatile long m_totalNanos;
+    private volatile long m_checkpointNanos;
+    private volatile long m_logNanos;
+    private volatile long m_applyNanos;
+    private volatile long m_locksNanos;
+
+    // Volume
+    private volatile int m_records;
+    private volatile int m_items;
+    private volatile int m_unfinishedTransactions;
+    private volatile int m_threads;
+
+    @Override
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_totalNanos);
+    }
+
+    @Override
+    public long getCheckpointMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_checkpointNanos);
+    }
+
+    @Override
+    public long getLogMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_logNanos);
+    }
+
+    @Override
+    public long getApplyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_applyNanos);
+    }
+
+    @Override
+    public long getLocksMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_locksNanos);
+    }
+
+    @Override
+    public int getRecords() {
+        return m_records;
+    }
+
+    @Override
+    public int getItems() {
+        return m_items;
+    }
+
+    @Override
+    public int getUnfinishedTransactions() {
+        return m_unfinishedTransactions;
+    }
+
+    @Override
+    public int getThreads() {
+        return m_threads;
+    }
+
+    void setTotalNanos(long nanos) {
+        m_totalNanos = nanos;
+    }
+
+    void setCheckpointNanos(long nanos) {
+        m_checkpointNanos = nanos;
+    }
+
+    void setLogNanos(long nanos) {
+        m_logNanos = nanos;
+    }
+
+    void setApplyNanos(long nanos) {
+        m_applyNanos = nanos;
+    }
+
+    void setLocksNanos(long nanos) {
+        m_locksNanos = nanos;
+    }
+
+    void setRecords(int records) {
+        m_records = records;
+    }
+
+    void setItems(int items) {
+        m_items = items;
+    }
+
+    void setUnfinishedTransactions(int unfinishedTransactions) {
+        m_unfinishedTransactions = unfinishedTransactions;
+    }
+
+    void setThreads(int threads) {
+        m_threads = threads;
+    }
+
+    @Override
+    public String toString() {
+        return getTotalMillis() + " ms (checkpoints " + getCheckpointMillis() + " ms, log " + getLogMillis()
+                + " ms, apply " + getApplyMillis() + " ms, locks " + getLocksMillis() + " ms), " + m_records
+                + " records, " + m_items + " items, " + m_unfinishedTransactions + " unfinished transactions, "
+                + m_threads + " threads";
+    }
+}
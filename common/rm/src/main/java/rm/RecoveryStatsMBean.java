@@ -0,0 +1,24 @@
+package rm;
+
+/**
+ * JMX view of the last recovery of a resource manager, see RecoveryStats
+ */
+public interface RecoveryStatsMBean {
+    long getTotalMillis();
+
+    long getCheckpointMillis();
+
+    long getLogMillis();
+
+    long getApplyMillis();
+
+    long getLocksMillis();
+
+    int getRecords();
+
+    int getItems();
+
+    int getUnfinishedTransactions();
+
+    int getThreads();
+}
@@ -0,0 +1,757 @@
+package rm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import storage.DurableFile;
+import storage.GroupCommit;
+import storage.SyncPolicy;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only redo log of the changes made by the transactions of a
+ * resource manager, with periodic checkpoints of the global table.
+ *
+ * The log and the checkpoint start with the header of ItemCodec. Every
+ * record is framed as its length, the CRC32 of its content and the content:
+ * a type (put, delete, prepare, commit or abort), a transaction id and, for
+ * puts and deletes, the key and the item in the format of ItemCodec.
+ * Recovery loads the last checkpoint, then redoes the committed
+ * transactions of the log in order and gives back the workspaces of the
+ * transactions which did not finish. A torn or corrupted record ends the
+ * log.
+ *
+ * The flights, cars and rooms of the global table live in its inventory
+ * store, which is updated in place; a checkpoint forces the store, writes
+ * the other items of the global table changed since the last checkpoint to
+ * a delta of the CheckpointStore, then rewrites the log with the records of
+ * the transactions not applied yet. Recovery therefore starts from the
+ * store as it is on disk and the checkpoints, and redoes the log over them.
+ *
+ * Prepare and commit records are only appended; the caller then waits in
+ * force() until they are on disk, as set by the SyncPolicy: concurrent
+ * callers share a single sync of the log with group-fsync, each caller
+ * syncs the log with fsync-per-commit, and force() returns right away with
+ * none. A committed transaction is applied to the global
+ * table only once its commit record is on disk, then reported with
+ * applied(). The global table must not change during a checkpoint.
+ *
+ * A record which cannot be written, or a sync which fails, fails the log:
+ * the file may now end with a torn record, and pages which failed to sync
+ * may be dropped, so every later append and force fails as well until the
+ * resource manager restarts and recovers.
+ */
+public class RedoLog {
+
+    // Logger
+    private static final Logger logger = LogManager.getLogger(RedoLog.class);
+
+    // Record types
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte PREPARE = 3;
+    private static final byte COMMIT = 4;
+    private static final byte ABORT = 5;
+
+    // Number of commits after which a checkpoint is due
+    private static final int CHECKPOINT_INTERVAL = 1000;
+
+    // Threads checking and decoding records during recovery
+    private static final int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Records larger than this are considered corrupted
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    // Log and checkpoint files
+    private File m_logFile;
+    private File m_checkpointFile;
+    private CheckpointStore m_checkpoints;
+
+    // Open log
+    private FileOutputStream m_fos;
+    private DataOutputStream m_out;
+
+    // Records of the transactions which were not applied or aborted yet
+    private Map<Integer, List<byte[]>> m_pending = new HashMap<>();
+
+    // Commits since the last checkpoint
+    private int m_commits = 0;
+
+    // When force() syncs the log
+    private SyncPolicy m_policy;
+
+    // Syncs the log for concurrent prepares and commits at once
+    private GroupCommit m_groupCommit;
+
+    // Syncs the log file, replaced by tests to inject failures
+    private GroupCommit.Syncer m_syncer = this::sync;
+
+    // First write or sync error, the log cannot be used anymore
+    private IOException m_failure;
+
+    /**
+     * Construct a redo log with the default sync policy
+     * @param logFile
+     * @param checkpointFile
+     */
+    public RedoLog(File logFile, File checkpointFile) {
+        this(logFile, checkpointFile, SyncPolicy.getDefault());
+    }
+
+    /**
+     * Construct a redo log
+     * @param logFile
+     * @param checkpointFile
+     * @param policy when force() syncs the log
+     */
+    public RedoLog(File logFile, File checkpointFile, SyncPolicy policy) {
+        m_logFile = logFile;
+        m_checkpointFile = checkpointFile;
+        m_checkpoints = new CheckpointStore(checkpointFile);
+        m_policy = policy;
+        if(policy == SyncPolicy.GROUP_FSYNC) {
+            m_groupCommit = new GroupCommit("Redo-log-sync-" + logFile.getName(), () -> m_syncer.sync());
+        }
+    }
+
+    /**
+     * Get the redo log file of a resource manager
+     * @param dir data directory
+     * @param name name of the resource manager
+     * @return redo log file
+     */
+    public static File getLogFile(File dir, String name) {
+        return new File(dir, name + "_redo.log");
+    }
+
+    /**
+     * Get the checkpoint file of a resource manager
+     * @param dir data directory
+     * @param name name of the resource manager
+     * @return checkpoint file
+     */
+    public static File getCheckpointFile(File dir, String name) {
+        return new File(dir, name + "_checkpoint");
+    }
+
+    /**
+     * Check if there is a log or a checkpoint to recover from
+     * @return true if found
+     */
+    public boolean exists() {
+        return m_logFile.exists() || m_checkpoints.exists();
+    }
+
+    /**
+     * Log a new value of an item
+     * @param tid
+     * @param key
+     * @param item
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void put(int tid, String key, RMItem item) throws IOException {
+        append(tid, PUT, key, item);
+    }
+
+    /**
+     * Log the deletion of an item
+     * @param tid
+     * @param key
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void delete(int tid, String key) throws IOException {
+        append(tid, DELETE, key, null);
+    }
+
+    /**
+     * Log that a transaction voted yes. Must be followed by force().
+     * Nothing is written for a transaction which did not log anything,
+     * or aborted already.
+     * @param tid
+     * @return true if logged
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized boolean prepare(int tid) throws IOException {
+        if(!m_pending.containsKey(tid)) {
+            return false;
+        }
+        append(tid, PREPARE, null, null);
+        return true;
+    }
+
+    /**
+     * Log that a transaction committed. Must be followed by force().
+     * @param tid
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void commit(int tid) throws IOException {
+        append(tid, COMMIT, null, null);
+    }
+
+    /**
+     * Report that a committed transaction was applied to the global table,
+     * its records are not needed anymore after the next checkpoint
+     * @param tid
+     */
+    public synchronized void applied(int tid) {
+        m_pending.remove(tid);
+        m_commits++;
+    }
+
+    /**
+     * Log that a transaction aborted. Nothing is written for a transaction
+     * which did not log anything. A missing abort record is harmless:
+     * recovery gives back the transaction as unfinished and the
+     * middleware aborts it again.
+     * @param tid
+     */
+    public synchronized void abort(int tid) {
+        if(m_pending.remove(tid) != null) {
+            try {
+                append(tid, ABORT, null, null);
+            } catch (IOException e) {
+                logger.error("Error logging the abort of transaction " + tid + ". Message: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wait until the records appended so far are on disk. Must not be
+     * called while holding the monitor of the log.
+     * @throws IOException if the log could not be synced
+     */
+    public void force() throws IOException {
+        try {
+            if(m_policy == SyncPolicy.GROUP_FSYNC) {
+                m_groupCommit.sync();
+            } else if(m_policy == SyncPolicy.FSYNC_PER_COMMIT) {
+                m_syncer.sync();
+            } else {
+                checkFailure();
+            }
+        } catch (IOException e) {
+            synchronized(this) {
+                throw fail(e);
+            }
+        }
+    }
+
+    /**
+     * Replace the sync of the log file
+     * @param syncer
+     */
+    void setSyncer(GroupCommit.Syncer syncer) {
+        m_syncer = syncer;
+    }
+
+    /**
+     * Check if enough commits were logged since the last checkpoint
+     * @return true if a checkpoint is due
+     */
+    public synchronized boolean needsCheckpoint() {
+        return m_commits >= CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * Force the inventory store, write the heap items of the global table
+     * changed since the last checkpoint and start a new log holding the
+     * records of the transactions not applied yet
+     * @param global committed state
+     */
+    public synchronized void checkpoint(GlobalTable global) {
+        checkpoint(global, false);
+    }
+
+    /**
+     * Checkpoint the global table
+     * @param global committed state
+     * @param full true to write every heap item to a new base image
+     *             instead of a delta
+     */
+    private void checkpoint(GlobalTable global, boolean full) {
+        global.force();
+        close();
+        try {
+            writeCheckpoint(global, full);
+        } finally {
+            if(m_out == null && m_failure == null) {
+                try {
+                    open();
+                } catch (IOException e) {
+                    logger.error("Error opening file " + m_logFile.getAbsolutePath() + ". Message: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoint and the new log, then replace the old log
+     * @param global committed state
+     * @param full true to write a base image instead of a delta
+     */
+    private void writeCheckpoint(GlobalTable global, boolean full) {
+        File dir = m_logFile.getAbsoluteFile().getParentFile();
+        if(!dir.exists() && !dir.mkdirs()) {
+            logger.error("Failed to create directory " + dir.getAbsolutePath() + ". Data will not be stored.");
+            return;
+        }
+
+        // Checkpoint first, the old log replayed over it gives the same state
+        Map<String, RMItem> dirty = full ? null : global.getDirtyItems();
+        try {
+            if(full) {
+                m_checkpoints.writeBase(global.getHeapItems());
+            } else {
+                m_checkpoints.writeDelta(dirty);
+            }
+        } catch (IOException e) {
+            logger.error("Error writing checkpoint " + m_checkpointFile.getAbsolutePath() + ". Message: "
+                    + e.getMessage());
+            return;
+        }
+        global.clearDirty(full ? null : dirty.keySet());
+
+        File tmpLog = new File(m_logFile.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmpLog);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            ItemCodec.writeHeader(out);
+            for(List<byte[]> records : m_pending.values()) {
+                for(byte[] record : records) {
+                    writeRecord(out, record);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            logger.error("Error writing file " + tmpLog.getAbsolutePath() + ". Message: " + e.getMessage());
+            return;
+        }
+
+        try {
+            DurableFile.replace(tmpLog, m_logFile);
+            m_commits = 0;
+            open();
+            logger.info("Checkpoint " + m_checkpointFile.getAbsolutePath() + " written, " + (full ? "full" :
+                    dirty.size() + " items changed") + ", " + m_checkpoints.getDeltas() + " deltas to compact");
+        } catch (IOException e) {
+            logger.error("Error replacing file " + m_logFile.getAbsolutePath() + ". Message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuild the state of the resource manager from its inventory store,
+     * the checkpoints and the log, then start a new log from a full
+     * checkpoint.
+     *
+     * The checkpoints are loaded while the log is read, and the records of
+     * the log are checked and decoded in parallel on a fork-join pool; only
+     * applying them is done in order.
+     * @param global global table backed by the inventory store on disk
+     * @return recovered state
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public synchronized Recovery recover(GlobalTable global) throws IOException {
+        Recovery recovery = new Recovery(global);
+        RecoveryStats stats = recovery.m_stats;
+        long start = System.nanoTime();
+        m_pending.clear();
+        ForkJoinPool pool = new ForkJoinPool(RECOVERY_THREADS);
+        stats.setThreads(RECOVERY_THREADS);
+        try {
+            CompletableFuture<RMHashtable> checkpoint = CompletableFuture.supplyAsync(() -> {
+                long checkpointStart = System.nanoTime();
+                try {
+                    return m_checkpoints.load(pool);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    stats.setCheckpointNanos(System.nanoTime() - checkpointStart);
+                }
+            }, pool);
+
+            // Read the frames sequentially, check and decode them in parallel
+            long logStart = System.nanoTime();
+            List<Frame> frames = new ArrayList<>();
+            if(m_logFile.exists()) {
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_logFile)))) {
+                    ItemCodec.readHeader(in);
+                    Frame frame;
+                    while((frame = readFrame(in)) != null) {
+                        frames.add(frame);
+                    }
+                }
+            }
+            List<LogRecord> records = pool.submit(() -> frames.parallelStream()
+                    .map(RedoLog::decode)
+                    .collect(Collectors.toList())).get();
+            stats.setLogNanos(System.nanoTime() - logStart);
+
+            // Checkpoints written before the inventory store hold every item
+            long applyStart = System.nanoTime();
+            for(Map.Entry<String, RMItem> entry : checkpoint.join().entrySet()) {
+                global.put(entry.getKey(), entry.getValue());
+            }
+            int replayed = 0;
+            for(LogRecord record : records) {
+                if(record.m_error != null) {
+                    logger.warn("Redo log ends with a corrupted record. Message: " + record.m_error.getMessage());
+                    break;
+                }
+                redo(record, recovery);
+                replayed++;
+            }
+            stats.setApplyNanos(System.nanoTime() - applyStart);
+            stats.setRecords(replayed);
+            logger.info("Redo log " + m_logFile.getAbsolutePath() + ": " + replayed + " records replayed, "
+                    + recovery.m_tables.size() + " unfinished transactions");
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException
+                    ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Recovery interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        // Start from a checkpoint of the recovered state
+        checkpoint(recovery.m_global, true);
+        stats.setItems(global.size());
+        stats.setUnfinishedTransactions(recovery.m_tables.size());
+        stats.setTotalNanos(System.nanoTime() - start);
+        return recovery;
+    }
+
+    /**
+     * Close the log
+     */
+    public synchronized void close() {
+        if(m_out != null) {
+            try {
+                m_out.close();
+            } catch (IOException e) {
+                logger.error("Error closing file " + m_logFile.getAbsolutePath() + ". Message: " + e.getMessage());
+            }
+            m_out = null;
+            m_fos = null;
+        }
+    }
+
+    /**
+     * Open the log for appending
+     * @throws IOException
+     */
+    private void open() throws IOException {
+        m_fos = new FileOutputStream(m_logFile, true);
+        m_out = new DataOutputStream(new BufferedOutputStream(m_fos));
+    }
+
+    /**
+     * Sync the log, records are written to the file as they are appended.
+     * A checkpoint replacing the log meanwhile has synced everything.
+     * @throws IOException
+     */
+    private void sync() throws IOException {
+        FileChannel channel;
+        synchronized(this) {
+            checkFailure();
+            if(m_out == null) {
+                return;
+            }
+            m_out.flush();
+            channel = m_fos.getChannel();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Replaced by a checkpoint, unless the log failed meanwhile
+            checkFailure();
+        }
+    }
+
+    /**
+     * Fail the log after a write or sync error. The log is closed, what
+     * was written before may or may not be on disk.
+     * @param e error
+     * @return error to throw
+     */
+    private IOException fail(IOException e) {
+        if(m_failure == null) {
+            m_failure = e;
+            logger.error("Redo log " + m_logFile.getAbsolutePath() + " failed, changes will be refused until "
+                    + "the RM restarts. Message: " + e.getMessage());
+            close();
+        }
+        return e;
+    }
+
+    /**
+     * Check that the log did not fail
+     * @throws IOException if it failed
+     */
+    private synchronized void checkFailure() throws IOException {
+        if(m_failure != null) {
+            throw new IOException("Redo log " + m_logFile.getAbsolutePath() + " failed earlier", m_failure);
+        }
+    }
+
+    /**
+     * Append a record
+     * @param tid
+     * @param type
+     * @param key
+     * @param item
+     * @throws IOException if the record cannot be encoded or written
+     */
+    private void append(int tid, byte type, String key, RMItem item) throws IOException {
+        checkFailure();
+        if(m_out == null) {
+            throw new IOException("Redo log " + m_logFile.getAbsolutePath() + " is not open");
+        }
+        byte[] record = encode(tid, type, key, item);
+        try {
+            writeRecord(m_out, record);
+            m_out.flush();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        if(type != ABORT) {
+            m_pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(record);
+        }
+    }
+
+    /**
+     * Check and decode a record. Runs in parallel with other records.
+     * @param frame
+     * @return decoded record, with an error if it is corrupted
+     */
+    private static LogRecord decode(Frame frame) {
+        LogRecord record = new LogRecord();
+        CRC32 crc = new CRC32();
+        crc.update(frame.m_record, 0, frame.m_record.length);
+        if((int) crc.getValue() != frame.m_checksum) {
+            record.m_error = new IOException("Record does not match its checksum");
+            return record;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.m_record));
+            record.m_type = in.readByte();
+            record.m_tid = in.readInt();
+            record.m_bytes = frame.m_record;
+            if(record.m_type == PUT || record.m_type == DELETE) {
+                record.m_key = ItemCodec.readString(in);
+                if(record.m_type == PUT) {
+                    byte[] itemBytes = new byte[in.readInt()];
+                    in.readFully(itemBytes);
+                    record.m_item = ItemCodec.decode(itemBytes);
+                }
+            } else if(record.m_type < PUT || record.m_type > ABORT) {
+                throw new IOException("Unknown record type " + record.m_type);
+            }
+        } catch (IOException e) {
+            record.m_error = e;
+        }
+        return record;
+    }
+
+    /**
+     * Apply a record to the state being recovered
+     * @param record
+     * @param recovery
+     */
+    private void redo(LogRecord record, Recovery recovery) {
+        int tid = record.m_tid;
+        switch (record.m_type) {
+            case PUT:
+            case DELETE:
+                recovery.m_tables.computeIfAbsent(tid, k -> new HashMap<>()).put(record.m_key, record.m_item);
+                m_pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(record.m_bytes);
+                break;
+            case PREPARE:
+                recovery.m_prepared.add(tid);
+                m_pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(record.m_bytes);
+                break;
+            case COMMIT:
+                Map<String, RMItem> table = recovery.m_tables.remove(tid);
+                if(table != null) {
+                    for(Map.Entry<String, RMItem> entry : table.entrySet()) {
+                        if(entry.getValue() == null) {
+                            recovery.m_global.remove(entry.getKey());
+                        } else {
+                            recovery.m_global.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                recovery.m_prepared.remove(tid);
+                recovery.m_committed.add(tid);
+                m_pending.remove(tid);
+                break;
+            case ABORT:
+                recovery.m_tables.remove(tid);
+                recovery.m_prepared.remove(tid);
+                recovery.m_aborted.add(tid);
+                m_pending.remove(tid);
+                break;
+        }
+    }
+
+    /**
+     * Encode the content of a record
+     * @param tid
+     * @param type
+     * @param key
+     * @param item
+     * @return content
+     * @throws IOException
+     */
+    private static byte[] encode(int tid, byte type, String key, RMItem item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(tid);
+        if(key != null) {
+            ItemCodec.writeString(out, key);
+        }
+        if(item != null) {
+            byte[] itemBytes = ItemCodec.encode(item);
+            out.writeInt(itemBytes.length);
+            out.write(itemBytes);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a record with its length and checksum
+     * @param out
+     * @param record
+     * @throws IOException
+     */
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * Read the next record of the log without checking it
+     * @param in
+     * @return record, or null at the end of the log
+     * @throws IOException
+     */
+    private Frame readFrame(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if(length < 0 || length > MAX_RECORD) {
+                logger.warn("Redo log ends with a corrupted record");
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return new Frame(record, checksum);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Record read from the log, with its checksum
+     */
+    private static class Frame {
+        private byte[] m_record;
+        private int m_checksum;
+
+        Frame(byte[] record, int checksum) {
+            m_record = record;
+            m_checksum = checksum;
+        }
+    }
+
+    /**
+     * Decoded record
+     */
+    private static class LogRecord {
+        private byte m_type;
+        private int m_tid;
+        private String m_key;
+        private RMItem m_item;
+        private byte[] m_bytes;
+        private IOException m_error;
+    }
+
+    /**
+     * State rebuilt from the checkpoint and the log
+     */
+    public static class Recovery {
+        private GlobalTable m_global;
+        private Map<Integer, Map<String, RMItem>> m_tables = new HashMap<>();
+        private Set<Integer> m_prepared = new HashSet<>();
+        private Set<Integer> m_committed = new HashSet<>();
+        private Set<Integer> m_aborted = new HashSet<>();
+        private RecoveryStats m_stats = new RecoveryStats();
+
+        Recovery(GlobalTable global) {
+            m_global = global;
+        }
+
+        /**
+         * Get the recovery time and volume
+         * @return statistics
+         */
+        public RecoveryStats getStats() {
+            return m_stats;
+        }
+
+        /**
+         * Get the committed state
+         * @return global table
+         */
+        public GlobalTable getGlobal() {
+            return m_global;
+        }
+
+        /**
+         * Get the changes of the unfinished transactions, a null item
+         * stands for a deleted one
+         * @return transaction id -> changes
+         */
+        public Map<Integer, Map<String, RMItem>> getTables() {
+            return m_tables;
+        }
+
+        /**
+         * Get the unfinished transactions which voted yes
+         * @return transaction ids
+         */
+        public Set<Integer> getPrepared() {
+            return m_prepared;
+        }
+
+        /**
+         * Get the transactions which committed since the checkpoint
+         * @return transaction ids
+         */
+        public Set<Integer> getCommitted() {
+            return m_committed;
+        }
+
+        /**
+         * Get the transactions which aborted since the checkpoint
+         * @return transaction ids
+         */
+        public Set<Integer> getAborted() {
+            return m_aborted;
+        }
+    }
+}
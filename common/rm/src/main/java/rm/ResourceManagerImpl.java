@@ -6,15 +6,22 @@ package rm;
 
 import inter.ResourceManager;
 import lm.DeadlockException;
+import lm.DeadlockPolicy;
 import lm.LockManager;
 import lm.TransactionAbortedException;
 import lm.TrxnObj;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.transaction.InvalidTransactionException;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.rmi.RemoteException;
 
 public class ResourceManagerImpl implements ResourceManager {
@@ -22,12 +29,18 @@ public class ResourceManagerImpl implements ResourceManager {
     // Logger
     private static final Logger logger = LogManager.getLogger(ResourceManagerImpl.class);
 
-    // Constants
-    private static final int GLOBAL_TABLE=-1;
+    // Lock a whole type instead of its items when a transaction locks at
+    // least this many items of the type at once. Off unless rm.lockEscalation
+    // is set since a lock on a type blocks every other transaction using it.
+    private static final boolean LOCK_ESCALATION = Boolean.getBoolean("rm.lockEscalation");
+    private static final int LOCK_ESCALATION_THRESHOLD = Integer.getInteger("rm.lockEscalationThreshold", 1000);
 
     // Local table for each transaction
     private Map<Integer, RMHashtable> m_tables;
 
+    // Committed state
+    private GlobalTable m_global;
+
     // Object dedicated to flag a an entry for deletion
     private final RMItem RM_NULL = new Customer(Integer.MIN_VALUE);
 
@@ -48,19 +61,88 @@ public class ResourceManagerImpl implements ResourceManager {
     // Vote request
     private Map<Integer, Integer> m_vrMap;
 
+    // Versions of the global table read by snapshot transactions
+    private VersionStore m_versions = new VersionStore();
+
+    // Snapshot transactions: transaction id -> snapshot
+    private Map<Integer, Long> m_snapshots = new ConcurrentHashMap<>();
+
+    // Keys written by each transaction, a transaction missing here only read
+    private Map<Integer, Set<String>> m_writeSets = new ConcurrentHashMap<>();
+
+    // Redo log of the changes, with checkpoints of the global table
+    private RedoLog m_redoLog;
+
+    // Optimistic concurrency control instead of locking
+    private boolean m_optimistic;
+
+    // Optimistic mode: versions read by each transaction (key -> commit)
+    private Map<Integer, Map<String, Long>> m_readSets = new ConcurrentHashMap<>();
+
+    // Optimistic mode: transactions validated but not committed yet
+    private Set<Integer> m_validated = ConcurrentHashMap.newKeySet();
+
+    // Time and volume of the last recovery
+    private RecoveryStats m_recoveryStats = new RecoveryStats();
+
     /**
      * Construct a new resource manager
      */
     public ResourceManagerImpl(String name) {
-        m_tables = new HashMap<>();
-        m_tables.put(GLOBAL_TABLE, new RMHashtable());
-        m_lockManager = new LockManager();
+        this(name, DeadlockPolicy.DETECT);
+    }
+
+    /**
+     * Construct a new resource manager
+     * @param name
+     * @param policy how the lock manager handles deadlocks
+     */
+    public ResourceManagerImpl(String name, DeadlockPolicy policy) {
+        this(name, policy, false);
+    }
+
+    /**
+     * Construct a new resource manager
+     * @param name
+     * @param policy how the lock manager handles deadlocks
+     * @param optimistic true to validate transactions at vote time
+     *                   instead of locking the items they access
+     */
+    public ResourceManagerImpl(String name, DeadlockPolicy policy, boolean optimistic) {
+        m_optimistic = optimistic;
+        m_tables = new ConcurrentHashMap<>();
+        m_lockManager = new LockManager(policy);
+        m_lockManager.setAbortHandler(tid -> CompletableFuture.runAsync(() -> abortWounded(tid)));
         m_name = name;
-        m_vrMap = new HashMap<>();
+        m_vrMap = new ConcurrentHashMap<>();
+        m_global = new GlobalTable(openInventoryStore());
+        m_redoLog = new RedoLog(getRedoLogFile(), getCheckpointFile());
 
-        // Resume RM
-        loadLocks();
+        // Resume RM, the locks are rebuilt from the recovered tables
+        long start = System.nanoTime();
         loadTables();
+        long locksStart = System.nanoTime();
+        loadLocks();
+        m_recoveryStats.setLocksNanos(System.nanoTime() - locksStart);
+        m_recoveryStats.setTotalNanos(System.nanoTime() - start);
+        logger.info("RM " + m_name + " recovered in " + m_recoveryStats);
+
+        // Expose lock contention and recovery time over JMX
+        registerStats(m_lockManager.getStats(), "lm:type=LockStats,name=" + m_name);
+        registerStats(m_recoveryStats, "rm:type=RecoveryStats,name=" + m_name);
+    }
+
+    /**
+     * Register statistics as an MBean
+     * @param stats
+     * @param name object name of the MBean
+     */
+    private void registerStats(Object stats, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(name));
+        } catch (JMException e) {
+            logger.warn("Failed to register MBean " + name + ". Message: " + e.getMessage());
+        }
     }
 
     /**
@@ -70,23 +152,69 @@ public class ResourceManagerImpl implements ResourceManager {
      * @return item read
      */
     private RMItem readData( int id, String key ) throws DeadlockException {
-        synchronized(getTable(id)) {
-            m_lockManager.Lock(id, key, TrxnObj.READ);
-            writeLocks();
+        return readData(id, key, false);
+    }
+
+    /**
+     * Reads a data item
+     * @param id
+     * @param key
+     * @param forUpdate true if the caller will write the item back, the
+     *                  item is then locked with UPDATE instead of READ so
+     *                  that two transactions reading then writing the same
+     *                  item do not deadlock on the lock conversion
+     * @return item read
+     */
+    private RMItem readData( int id, String key, boolean forUpdate ) throws DeadlockException {
+        // Snapshot transactions read committed versions without locking
+        Long snapshot = m_snapshots.get(id);
+        if(snapshot != null) {
+            if(forUpdate) {
+                throw readOnly(id);
+            }
+            RMItem item;
+            synchronized(m_versions) {
+                item = m_versions.read(key, m_global.get(key), snapshot);
+            }
+            return item == null ? null : item.clone();
+        }
+
+        RMHashtable table = getTable(id);
+        synchronized(table) {
+            checkActive(id, table);
+            if(m_optimistic) {
+                // Copy the committed version and remember which one it was
+                if(!table.containsKey(key)) {
+                    RMItem item;
+                    synchronized(m_versions) {
+                        item = m_global.get(key);
+                        recordRead(id, key);
+                    }
+                    if(item == null) {
+                        return null;
+                    }
+                    table.put(key, item.clone());
+                }
+            } else {
+                m_lockManager.Lock(id, key, forUpdate ? TrxnObj.UPDATE : TrxnObj.READ);
+                checkActive(id, table);
+            }
+
             // Check if data already in table
-            if(!getTable(id).containsKey(key)) {
-                if(!getTable(GLOBAL_TABLE).containsKey(key)) {
+            if(!table.containsKey(key)) {
+                if(!m_global.containsKey(key)) {
                     return null;
                 }
-                getTable(id).put(key, getTable(GLOBAL_TABLE).get(key).clone());
-                writeTable(id);
+                // Read copies are not persisted, they are only
+                // written along with the items the transaction changes
+                table.put(key, m_global.get(key).clone());
             }
 
             // RM_NULL must behave as a null
-            if(getTable(id).get(key) == RM_NULL) {
+            if(table.get(key) == RM_NULL) {
                 return null;
             }
-            return getTable(id).get(key);
+            return table.get(key);
         }
     }
 
@@ -97,26 +225,223 @@ public class ResourceManagerImpl implements ResourceManager {
      * @param value
      */
     private void writeData( int id, String key, RMItem value ) throws DeadlockException {
-        synchronized(getTable(id)) {
+        if(m_snapshots.containsKey(id)) {
+            throw readOnly(id);
+        }
+        RMHashtable table = getTable(id);
+        synchronized(table) {
+            checkActive(id, table);
+            lockForWrite(id, key);
+            checkActive(id, table);
+            table.put(key, value);
+            m_writeSets.computeIfAbsent(id, tid -> ConcurrentHashMap.newKeySet()).add(key);
+
+            // Log change
+            try {
+                m_redoLog.put(id, key, value);
+            } catch (IOException e) {
+                throw notLogged(id, e);
+            }
+        }
+    }
+    
+    /**
+     * Get the right to write an item: a WRITE lock, or in optimistic
+     * mode the committed version the write is based on
+     * @param id
+     * @param key
+     */
+    private void lockForWrite( int id, String key ) throws DeadlockException {
+        if(m_optimistic) {
+            synchronized(m_versions) {
+                recordRead(id, key);
+            }
+        } else {
             m_lockManager.Lock(id, key, TrxnObj.WRITE);
-            getTable(id).put(key, value);
+        }
+    }
+
+    /**
+     * Remember the committed version of an item seen by a transaction,
+     * unless it saw one already. Must hold the monitor of m_versions.
+     * @param id
+     * @param key
+     */
+    private void recordRead( int id, String key ) {
+        m_readSets.computeIfAbsent(id, tid -> new ConcurrentHashMap<>())
+                .putIfAbsent(key, m_versions.version(key));
+    }
+
+    /**
+     * Check that no transaction committed or validated a change to the
+     * items a transaction read or wrote since it read them. A valid
+     * transaction with writes stays validated until it commits or
+     * aborts, so that two conflicting transactions cannot both pass.
+     * @param tid
+     * @return true if the transaction can commit
+     */
+    private boolean validate( int tid ) {
+        Map<String, Long> readSet = m_readSets.getOrDefault(tid, Collections.emptyMap());
+        Set<String> writeSet = m_writeSets.getOrDefault(tid, Collections.emptySet());
 
-            // Write locks and table
-            writeLocks();
-            writeTable(id);
+        // The versions read by a transaction are lost when the RM restarts
+        if(!m_readSets.containsKey(tid) && !writeSet.isEmpty()) {
+            logger.warn("Transaction " + tid + " has no recorded reads");
+            return false;
+        }
+        synchronized(m_versions) {
+            for(Map.Entry<String, Long> read : readSet.entrySet()) {
+                if(m_versions.version(read.getKey()) != read.getValue()) {
+                    logger.info("Transaction " + tid + " read " + read.getKey() + " which changed since");
+                    return false;
+                }
+            }
+            for(Integer other : m_validated) {
+                if(other == tid) {
+                    continue;
+                }
+                for(String key : m_writeSets.getOrDefault(other, Collections.emptySet())) {
+                    if(readSet.containsKey(key) || writeSet.contains(key)) {
+                        logger.info("Transaction " + tid + " conflicts with validated transaction "
+                                + other + " on " + key);
+                        return false;
+                    }
+                }
+            }
+            if(!writeSet.isEmpty()) {
+                m_validated.add(tid);
+            }
         }
+        return true;
     }
-    
+
+    /**
+     * Check if a transaction was aborted
+     * @param id
+     * @return true if aborted
+     */
+    private boolean isAborted( int id ) {
+        Integer vr = m_vrMap.get(id);
+        return vr != null && vr == VR_ABORT;
+    }
+
+    /**
+     * Fail an operation of a transaction which was aborted while the
+     * operation was running. The table was created again by the
+     * operation and is dropped with the locks it took. Must hold the
+     * monitor of the table.
+     * @param id
+     * @param table table of the transaction
+     * @throws DeadlockException if the transaction was aborted
+     */
+    private void checkActive( int id, RMHashtable table ) throws DeadlockException {
+        if(isAborted(id)) {
+            if(m_tables.remove(id, table)) {
+                m_writeSets.remove(id);
+                m_readSets.remove(id);
+                m_lockManager.UnlockAll(id);
+            }
+            throw new DeadlockException(id, "Transaction " + id + " was aborted");
+        }
+    }
+
+    /**
+     * Error raised when a snapshot transaction tries to write
+     * @param id
+     * @return exception to throw
+     */
+    private IllegalStateException readOnly(int id) {
+        logger.warn("Transaction " + id + " is a read-only snapshot and cannot write");
+        return new IllegalStateException("Transaction " + id + " is read-only");
+    }
+
+    /**
+     * Abort a transaction whose change could not be logged, it cannot
+     * commit anymore
+     * @param id
+     * @param e error of the redo log
+     * @return exception to throw
+     */
+    private DeadlockException notLogged(int id, IOException e) {
+        logger.error("Aborting transaction " + id + " because its change could not be logged. Message: "
+                + e.getMessage());
+        if(m_vrMap.putIfAbsent(id, VR_ABORT) == null) {
+            deleteTable(id);
+        }
+        return new DeadlockException(id, "Transaction " + id + " was aborted");
+    }
+
+    /**
+     * Lock several data items at once. The requests are queued together
+     * so the transaction waits for the slowest item instead of the sum
+     * of all waits. With lock escalation on, a type (e.g. flight) with
+     * many items in the set is locked with a single request instead.
+     * @param id
+     * @param keys
+     * @param lockType
+     */
+    private void lockAll( int id, Collection<String> keys, int lockType ) throws DeadlockException {
+        // Nothing to lock, conflicts are found at validation
+        if(m_optimistic) {
+            return;
+        }
+
+        Map<String, List<String>> keysByType = new HashMap<>();
+        for(String key : keys) {
+            String type = LockManager.parentOf(key);
+            keysByType.computeIfAbsent(type == null ? key : type, k -> new ArrayList<>()).add(key);
+        }
+
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for(Map.Entry<String, List<String>> group : keysByType.entrySet()) {
+            if(LOCK_ESCALATION && group.getValue().size() >= LOCK_ESCALATION_THRESHOLD) {
+                logger.info("RM::lockAll(" + id + ") locking all of " + group.getKey() + " instead of "
+                        + group.getValue().size() + " items");
+                requests.add(m_lockManager.lockAsync(id, group.getKey(), lockType));
+            } else {
+                for(String key : group.getValue()) {
+                    requests.add(m_lockManager.lockAsync(id, key, lockType));
+                }
+            }
+        }
+        try {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof DeadlockException) {
+                throw (DeadlockException) e.getCause();
+            }
+            throw e;
+        }
+
+        // The transaction may have been aborted while waiting
+        if(isAborted(id)) {
+            m_lockManager.UnlockAll(id);
+            throw new DeadlockException(id, "Transaction " + id + " was aborted");
+        }
+    }
+
     /**
      * Remove the item out of storage
      * @param id
      * @param key
      * @return removed item
      */
-    private RMItem removeData(int id, String key) {
-        synchronized(getTable(id)) {
-            RMItem deleted = getTable(id).put(key, RM_NULL);
-            writeTable(id);
+    private RMItem removeData(int id, String key) throws DeadlockException {
+        if(m_snapshots.containsKey(id)) {
+            throw readOnly(id);
+        }
+        RMHashtable table = getTable(id);
+        synchronized(table) {
+            checkActive(id, table);
+            lockForWrite(id, key);
+            checkActive(id, table);
+            RMItem deleted = table.put(key, RM_NULL);
+            m_writeSets.computeIfAbsent(id, tid -> ConcurrentHashMap.newKeySet()).add(key);
+            try {
+                m_redoLog.delete(id, key);
+            } catch (IOException e) {
+                throw notLogged(id, e);
+            }
             return deleted;
         }
     }
@@ -129,7 +454,7 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     private boolean deleteItem(int id, String key) {
         logger.info ("RM::deleteItem(" + id + ", " + key + ") called" );
-        ReservableItem curObj = (ReservableItem) readData( id, key );
+        ReservableItem curObj = (ReservableItem) readData( id, key, true );
         // Check if there is such an item in the storage
         if ( curObj == null ) {
             logger.warn("RM::deleteItem(" + id + ", " + key + ") failed--item doesn't exist" );
@@ -194,14 +519,14 @@ public class ResourceManagerImpl implements ResourceManager {
     private boolean reserveItem(int id, int customerID, String key, String location) {
         logger.info("RM::reserveItem( " + id + ", customer=" + customerID + ", " +key+ ", "+location+" ) called" );
         // Read customer object if it exists (and read lock it)
-        Customer cust = (Customer) readData( id, Customer.getKey(customerID) );        
+        Customer cust = (Customer) readData( id, Customer.getKey(customerID), true );
         if ( cust == null ) {
             logger.warn("RM::reserveCar( " + id + ", " + customerID + ", " + key + ", "+location+")  failed--customer doesn't exist" );
             return false;
         } 
         
         // Check if the item is available
-        ReservableItem item = (ReservableItem)readData(id, key);
+        ReservableItem item = (ReservableItem)readData(id, key, true);
         if ( item == null ) {
             logger.warn("RM::reserveItem( " + id + ", " + customerID + ", " + key+", " +location+") failed--item doesn't exist" );
             return false;
@@ -215,6 +540,7 @@ public class ResourceManagerImpl implements ResourceManager {
             // decrease the number of available items in the storage
             item.setCount(item.getCount() - 1);
             item.setReserved(item.getReserved()+1);
+            writeData( id, item.getKey(), item );
             
             logger.info("RM::reserveItem( " + id + ", " + customerID + ", " + key + ", " +location+") succeeded" );
             return true;
@@ -233,7 +559,7 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public boolean addFlight(int id, int flightNum, int flightSeats, int flightPrice) throws RemoteException {
         logger.info("RM::addFlight(" + id + ", " + flightNum + ", $" + flightPrice + ", " + flightSeats + ") called" );
-        Flight curObj = (Flight) readData( id, Flight.getKey(flightNum) );
+        Flight curObj = (Flight) readData( id, Flight.getKey(flightNum), true );
         if ( curObj == null ) {
             // Doesn't exist...add it
             Flight newObj = new Flight( flightNum, flightSeats, flightPrice );
@@ -275,7 +601,7 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public boolean addRooms(int id, String location, int count, int price) throws RemoteException {
         logger.info("RM::addRooms(" + id + ", " + location + ", " + count + ", $" + price + ") called" );
-        Hotel curObj = (Hotel) readData( id, Hotel.getKey(location) );
+        Hotel curObj = (Hotel) readData( id, Hotel.getKey(location), true );
         if ( curObj == null ) {
             // doesn't exist...add it
             Hotel newObj = new Hotel( location, count, price );
@@ -316,7 +642,7 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public boolean addCars(int id, String location, int count, int price) throws RemoteException {
         logger.info("RM::addCars(" + id + ", " + location + ", " + count + ", $" + price + ") called" );
-        Car curObj = (Car) readData( id, Car.getKey(location) );
+        Car curObj = (Car) readData( id, Car.getKey(location), true );
         if ( curObj == null ) {
             // car location doesn't exist...add it
             Car newObj = new Car( location, count, price );
@@ -480,7 +806,7 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public boolean newCustomer(int id, int customerID ) throws RemoteException {
         logger.info("INFO: RM::newCustomer(" + id + ", " + customerID + ") called" );
-        Customer cust = (Customer) readData( id, Customer.getKey(customerID) );
+        Customer cust = (Customer) readData( id, Customer.getKey(customerID), true );
         if ( cust == null ) {
             cust = new Customer(customerID);
             writeData( id, cust.getKey(), cust );
@@ -501,14 +827,19 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public boolean deleteCustomer(int id, int customerID) throws RemoteException {
         logger.info("RM::deleteCustomer(" + id + ", " + customerID + ") called" );
-        Customer cust = (Customer) readData( id, Customer.getKey(customerID) );
+        Customer cust = (Customer) readData( id, Customer.getKey(customerID), true );
         if ( cust == null ) {
             logger.warn("RM::deleteCustomer(" + id + ", " + customerID + ") failed--customer doesn't exist" );
             return false;
         } else {            
             // Increase the reserved numbers of all reservable items which the customer reserved. 
             RMHashtable reservationHT = cust.getReservations();
-            for (Enumeration e = reservationHT.keys(); e.hasMoreElements();) {        
+            List<String> reservedKeys = new ArrayList<>();
+            for (Enumeration<?> e = reservationHT.keys(); e.hasMoreElements();) {
+                reservedKeys.add(cust.getReservedItem((String) e.nextElement()).getKey());
+            }
+            lockAll(id, reservedKeys, TrxnObj.WRITE);
+            for (Enumeration<?> e = reservationHT.keys(); e.hasMoreElements();) {        
                 String reservedkey = (String) (e.nextElement());
                 ReservedItem reserveditem = cust.getReservedItem(reservedkey);
                 logger.info("RM::deleteCustomer(" + id + ", " + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times"  );
@@ -516,6 +847,7 @@ public class ResourceManagerImpl implements ResourceManager {
                 logger.info("RM::deleteCustomer(" + id + ", " + customerID + ") has reserved " + reserveditem.getKey() + "which is reserved" +  item.getReserved() +  " times and is still available " + item.getCount() + " times"  );
                 item.setReserved(item.getReserved()-reserveditem.getCount());
                 item.setCount(item.getCount()+reserveditem.getCount());
+                writeData(id, item.getKey(), item);
             }
             
             // Remove the customer from the storage
@@ -562,7 +894,9 @@ public class ResourceManagerImpl implements ResourceManager {
     }
     
     /**
-     * Reserve an itinerary
+     * Reserve the items of an itinerary held by this RM, all of them or
+     * none. The items are locked together and checked before any of them
+     * is reserved.
      * @param id
      * @param customer
      * @param flightNumbers
@@ -572,11 +906,103 @@ public class ResourceManagerImpl implements ResourceManager {
      * @return true if all reservations are successful
      * @throws RemoteException
      */
-    public boolean itinerary(int id,int customer, Vector flightNumbers,String location, boolean car, boolean room)
+    public boolean itinerary(int id,int customer, Vector<?> flightNumbers,String location, boolean car, boolean room)
             throws RemoteException  {
-        // NOTE:
-        // Implementation is handled by the middleware server
-        return false;
+        logger.info("RM::itinerary(" + id + ", " + customer + ", " + flightNumbers + ", " + location + ", "
+                + car + ", " + room + ") called" );
+        List<String[]> items = getItineraryItems(flightNumbers, location, car, room);
+        Map<String, Integer> needed = new HashMap<>();
+        for(String[] item : items) {
+            needed.merge(item[0], 1, Integer::sum);
+        }
+        List<String> keys = new ArrayList<>(needed.keySet());
+        keys.add(Customer.getKey(customer));
+        lockAll(id, keys, TrxnObj.WRITE);
+
+        // Check everything before reserving anything
+        if(readData(id, Customer.getKey(customer), true) == null) {
+            logger.warn("RM::itinerary(" + id + ", " + customer + ") failed--customer doesn't exist" );
+            return false;
+        }
+        for(Map.Entry<String, Integer> entry : needed.entrySet()) {
+            ReservableItem item = (ReservableItem) readData(id, entry.getKey(), true);
+            if(item == null || item.getCount() < entry.getValue()) {
+                logger.warn("RM::itinerary(" + id + ", " + customer + ") failed--cannot reserve "
+                        + entry.getValue() + " " + entry.getKey());
+                return false;
+            }
+        }
+        for(String[] item : items) {
+            reserveItem(id, customer, item[0], item[1]);
+        }
+        logger.info("RM::itinerary(" + id + ", " + customer + ") succeeded" );
+        return true;
+    }
+
+    /**
+     * Cancel the reservations made by itinerary(), when another RM
+     * could not reserve its part of the itinerary
+     * @param id
+     * @param customer
+     * @param flightNumbers
+     * @param location
+     * @param car
+     * @param room
+     * @return true if all reservations are cancelled
+     * @throws RemoteException
+     */
+    public boolean cancelItinerary(int id, int customer, Vector<?> flightNumbers, String location, boolean car,
+                                   boolean room) throws RemoteException {
+        logger.info("RM::cancelItinerary(" + id + ", " + customer + ", " + flightNumbers + ", " + location + ", "
+                + car + ", " + room + ") called" );
+        Customer cust = (Customer) readData(id, Customer.getKey(customer), true);
+        if(cust == null) {
+            logger.warn("RM::cancelItinerary(" + id + ", " + customer + ") failed--customer doesn't exist" );
+            return false;
+        }
+        for(String[] entry : getItineraryItems(flightNumbers, location, car, room)) {
+            ReservedItem reserved = cust.getReservedItem(entry[0]);
+            ReservableItem item = (ReservableItem) readData(id, entry[0], true);
+            if(reserved == null || item == null) {
+                logger.warn("RM::cancelItinerary(" + id + ", " + customer + ") failed--" + entry[0]
+                        + " is not reserved" );
+                return false;
+            }
+            if(reserved.getCount() > 1) {
+                reserved.setCount(reserved.getCount() - 1);
+            } else {
+                cust.getReservations().remove(entry[0]);
+            }
+            item.setCount(item.getCount() + 1);
+            item.setReserved(item.getReserved() - 1);
+            writeData(id, item.getKey(), item);
+        }
+        writeData(id, cust.getKey(), cust);
+        logger.info("RM::cancelItinerary(" + id + ", " + customer + ") succeeded" );
+        return true;
+    }
+
+    /**
+     * Get the items of an itinerary
+     * @param flightNumbers
+     * @param location
+     * @param car
+     * @param room
+     * @return key and location of each item, once per reservation
+     */
+    private List<String[]> getItineraryItems(Vector<?> flightNumbers, String location, boolean car, boolean room) {
+        List<String[]> items = new ArrayList<>();
+        for(Object flightNumber : flightNumbers) {
+            int flightNum = Integer.parseInt(flightNumber.toString());
+            items.add(new String[]{Flight.getKey(flightNum), String.valueOf(flightNum)});
+        }
+        if(car) {
+            items.add(new String[]{Car.getKey(location), location});
+        }
+        if(room) {
+            items.add(new String[]{Hotel.getKey(location), location});
+        }
+        return items;
     }
 
     @Override
@@ -584,6 +1010,34 @@ public class ResourceManagerImpl implements ResourceManager {
         return 0;
     }
 
+    @Override
+    public int startReadOnly() throws RemoteException {
+        return 0;
+    }
+
+    @Override
+    public void startSnapshot(int transactionId) throws RemoteException {
+        m_snapshots.computeIfAbsent(transactionId, tid -> {
+            long snapshot = m_versions.beginSnapshot();
+            logger.info("Transaction " + tid + " reads snapshot " + snapshot);
+            return snapshot;
+        });
+    }
+
+    /**
+     * End the snapshot of a transaction
+     * @param transactionId
+     * @return true if the transaction was a snapshot transaction
+     */
+    private boolean endSnapshot(int transactionId) {
+        Long snapshot = m_snapshots.remove(transactionId);
+        if(snapshot == null) {
+            return false;
+        }
+        m_versions.endSnapshot(snapshot);
+        return true;
+    }
+
     @Override
     public boolean commit(int transactionId) throws RemoteException, InvalidTransactionException {
         logger.info("Received a commit request for transaction " + transactionId);
@@ -597,19 +1051,48 @@ public class ResourceManagerImpl implements ResourceManager {
             return false;
         }
 
+        // Nothing to apply for a snapshot transaction
+        if(endSnapshot(transactionId)) {
+            m_vrMap.put(transactionId, VR_COMMITED);
+            logger.info("Snapshot transaction " + transactionId + " ended");
+            return true;
+        }
+
         if(m_tables.containsKey(transactionId)) {
-            // Copy changes
-            for(String key : getTable(transactionId).keySet()) {
-                if(getTable(transactionId).get(key) == RM_NULL) {
-                    if(getTable(GLOBAL_TABLE).containsKey(key)) {
-                        getTable(GLOBAL_TABLE).remove(key);
+            // Wait for the commit record to be on disk, along with the
+            // records of concurrent commits. The items written stay locked
+            // (or validated) until the changes are applied. Nothing is
+            // applied if the commit record may not be on disk.
+            try {
+                m_redoLog.commit(transactionId);
+                m_redoLog.force();
+            } catch (IOException e) {
+                logger.error("Commit for transaction " + transactionId + " could not be logged. Message: "
+                        + e.getMessage());
+                throw new RemoteException("Commit for transaction " + transactionId + " could not be logged", e);
+            }
+
+            // Copy changes in place, stamped with a new commit sequence number
+            synchronized(m_versions) {
+                long commit = m_versions.nextCommit();
+                for(String key : m_writeSets.getOrDefault(transactionId, Collections.emptySet())) {
+                    m_versions.supersede(key, m_global.get(key), commit);
+                    if(getTable(transactionId).get(key) == RM_NULL) {
+                        if(m_global.containsKey(key)) {
+                            m_global.remove(key);
+                        }
+                    } else {
+                        m_global.put(key, getTable(transactionId).get(key));
                     }
-                } else {
-                    getTable(GLOBAL_TABLE).put(key, getTable(transactionId).get(key));
+                }
+                m_redoLog.applied(transactionId);
+
+                // Keep the log short
+                if(m_redoLog.needsCheckpoint()) {
+                    m_redoLog.checkpoint(m_global);
                 }
             }
             deleteTable(transactionId);
-            writeTable(GLOBAL_TABLE);
             m_vrMap.put(transactionId, VR_COMMITED);
             logger.info("Commit for transaction " + transactionId + " has been successfully performed");
             return true;
@@ -617,17 +1100,80 @@ public class ResourceManagerImpl implements ResourceManager {
         throw new InvalidTransactionException("Transaction id " + transactionId + " is not available");
     }
 
+    /**
+     * Commit a transaction whose only participant is this RM. There is no
+     * vote: the RM validates the transaction if needed and commits it,
+     * forcing the log once instead of twice.
+     * @param transactionId
+     * @return true if committed, false if the transaction was aborted
+     * @throws RemoteException
+     * @throws InvalidTransactionException
+     */
+    @Override
+    public boolean commitOnePhase(int transactionId) throws RemoteException, InvalidTransactionException {
+        logger.info("Received a one-phase commit request for transaction " + transactionId);
+        Integer vr = m_vrMap.get(transactionId);
+        if(vr != null) {
+            // Resent after a crash, or prepared before the RM restarted
+            return vr == VR_COMMITED || (vr == VR_REQUESTED && commit(transactionId));
+        }
+
+        if(m_optimistic && !m_snapshots.containsKey(transactionId) && !validate(transactionId)) {
+            logger.info("Aborting transaction " + transactionId + " because validation failed");
+            abort(transactionId);
+            return false;
+        }
+
+        // Nothing to log for a transaction which only read
+        if(!m_writeSets.containsKey(transactionId)
+                && (m_tables.containsKey(transactionId) || m_snapshots.containsKey(transactionId))) {
+            endSnapshot(transactionId);
+            deleteTable(transactionId);
+            m_vrMap.put(transactionId, VR_COMMITED);
+            logger.info("Read-only transaction " + transactionId + " ended");
+            return true;
+        }
+
+        // An unknown transaction must not be left marked as committing
+        if(!m_tables.containsKey(transactionId)) {
+            throw new InvalidTransactionException("Transaction id " + transactionId + " is not available");
+        }
+
+        // A transaction wounded by an older one from now on is not aborted
+        if(m_vrMap.putIfAbsent(transactionId, VR_REQUESTED) != null) {
+            logger.info("Transaction " + transactionId + " aborted while committing");
+            return false;
+        }
+        return commit(transactionId);
+    }
+
     @Override
     public void abort(int transactionId) throws RemoteException, InvalidTransactionException {
         logger.info("Received an abort request for transaction " + transactionId);
-        deleteTable(transactionId);
-        writeTable(GLOBAL_TABLE);
         m_vrMap.put(transactionId, VR_ABORT);
+        endSnapshot(transactionId);
+        deleteTable(transactionId);
+    }
+
+    /**
+     * Abort a transaction wounded by an older one while it was not
+     * waiting for a lock. The middleware learns about it from the next
+     * operation or vote of the transaction. A prepared transaction is
+     * left alone since only the decision can end it.
+     * @param transactionId
+     */
+    private void abortWounded(int transactionId) {
+        if(m_vrMap.putIfAbsent(transactionId, VR_ABORT) == null) {
+            logger.info("Aborting transaction " + transactionId + " wounded by an older transaction");
+            endSnapshot(transactionId);
+            deleteTable(transactionId);
+        }
     }
 
     @Override
     public boolean shutdown() throws RemoteException {
         logger.info("Shutting down ...");
+        m_lockManager.close();
         return true;
     }
 
@@ -639,160 +1185,150 @@ public class ResourceManagerImpl implements ResourceManager {
      * @return copy of the local table
      */
     public RMHashtable getTable(int transactionId) {
-        if(m_tables.containsKey(transactionId)) {
-            return m_tables.get(transactionId);
-        }
-        RMHashtable localTable = new RMHashtable();
-        m_tables.put(transactionId, localTable);
-        return localTable;
+        return m_tables.computeIfAbsent(transactionId, tid -> new RMHashtable());
     }
 
     /**
-     * Delete a table and unlock all acquired locks
+     * Delete a table, forget its logged changes unless it committed
+     * and unlock all acquired locks
      * @param transactionId
      */
     public void deleteTable(int transactionId) {
-        m_tables.remove(transactionId);
+        // An operation of the transaction may be waiting for a lock while
+        // holding the monitor of the table, failing its request lets it go
         m_lockManager.UnlockAll(transactionId);
-
-        // Delete transaction file
-        File tFile = getTableFile(transactionId);
-        if(tFile.exists()) {
-            if(tFile.delete()) {
-                logger.info("File " + tFile.getAbsolutePath() + " deleted");
-            } else {
-                logger.error("File " + tFile.getAbsolutePath() + " could not be deleted");
+        RMHashtable table = m_tables.get(transactionId);
+        if(table != null) {
+            // Let a running operation finish
+            synchronized(table) {
+                m_tables.remove(transactionId, table);
             }
-        } else {
-            logger.warn("Failed to delete " + tFile.getAbsolutePath() + " because file was not found");
         }
+        m_validated.remove(transactionId);
+        m_writeSets.remove(transactionId);
+        m_readSets.remove(transactionId);
+        m_redoLog.abort(transactionId);
+
+        // Locks taken by the operation which was running
+        m_lockManager.UnlockAll(transactionId);
     }
 
     /**
-     * Get a table file
-     * @param tid
-     * @return file
+     * Get the redo log
+     * @return redo log
      */
-    private File getTableFile(int tid) {
-        return new File("data_" + m_name + "/" + m_name + "_" + tid);
+    RedoLog getRedoLog() {
+        return m_redoLog;
     }
 
     /**
-     * Get the lock file
-     * @return lock file
+     * Get the redo log file
+     * @return redo log file
      */
-    private File getLockFile() {
-        return new File("data_"+ m_name + "/" + m_name + "_LM");
+    private File getRedoLogFile() {
+        return RedoLog.getLogFile(new File("data_" + m_name), m_name);
     }
 
     /**
-     * Load object files
+     * Get the checkpoint file
+     * @return checkpoint file
      */
-    private synchronized void loadTables() {
-        File dir = getTableFile(GLOBAL_TABLE).getParentFile();
-        if(!dir.exists()) {
-            logger.info("RM " + m_name + " did not find any directory to fetch. Starting empty");
-        } else {
-            File[] files = dir.listFiles();
-            boolean fileLoaded = false;
-            for(File file : files) {
-                try (FileInputStream fis = new FileInputStream(file); ObjectInputStream ois = new ObjectInputStream(fis)){
-                    String fileName = file.getName();
-                    // Skip LM file
-                    if(fileName.endsWith("LM")) {
-                        continue;
-                    }
-                    String split[] = fileName.split("_");
-                    RMHashtable table = (RMHashtable) ois.readObject();
-                    if(split.length > 0) {
-                        try {
-                            int tid = Integer.parseInt(split[split.length-1]);
-                            m_tables.put(tid, table);
-                            logger.info("Table file " + file.getAbsolutePath() + " loaded");
-                            fileLoaded = true;
-                        } catch (Exception e) {
-                            throw new IOException("File does not contain transaction id. File will be ignored");
-                        }
-                    }
-                } catch (ClassNotFoundException | IOException e) {
-                    logger.error("Error loading table " + file.getAbsolutePath() + ". Message: " + e.getMessage());
-                }
-            }
-
-            // If no file were found
-            if(!fileLoaded) {
-                logger.info("RM " + m_name + " did not find any files to load. Starting empty");
-            }
-        }
+    private File getCheckpointFile() {
+        return RedoLog.getCheckpointFile(new File("data_" + m_name), m_name);
     }
 
     /**
-     * Store table into files
+     * Open the inventory store of the global table
+     * @return inventory store, or null if it cannot be opened
      */
-    private synchronized void writeTable(int tid) {
-        // Create directory if not there
-        File tFile = getTableFile(tid);
-        File dir = tFile.getParentFile();
-        if(!dir.exists()) {
-            if(!dir.mkdir()) {
-                logger.error("Failed to create directory " + dir.getAbsolutePath() + ". Data will not be stored.");
-                return;
-            } else {
-                logger.info("Directory " + dir.getAbsolutePath() + " created");
-            }
-        }
-
-        // Create object file
-        try(FileOutputStream fos = new FileOutputStream(tFile); ObjectOutputStream obj = new ObjectOutputStream(fos)) {
-            obj.writeObject(m_tables.get(tid));
-            logger.info("File " + tFile.getAbsolutePath() + " updated!");
+    private InventoryStore openInventoryStore() {
+        File file = InventoryStore.getFile(new File("data_" + m_name), m_name);
+        try {
+            return new InventoryStore(file);
         } catch (IOException e) {
-            logger.error("Error writing file " + tFile.getAbsolutePath() + ". Message: " + e.getMessage());
+            logger.error("Error opening file " + file.getAbsolutePath() + ". Items will be kept in memory. Message: "
+                    + e.getMessage());
+            return null;
         }
     }
 
     /**
-     * Write lock manager to file
+     * Recover the tables from the inventory store, the checkpoint and the
+     * redo log. The RM does not start if they cannot be read: it would
+     * serve an incomplete state and could not log new changes.
+     * @throws UncheckedIOException if the recovery fails
      */
-    private synchronized void writeLocks() {
-        File lockFile = getLockFile();
-        File dir = lockFile.getParentFile();
-        if(!dir.exists()) {
-            if(!dir.mkdir()) {
-                logger.error("Failed to create directory " + dir.getAbsolutePath() + ". Data will not be stored.");
-                return;
-            } else {
-                logger.info("Directory " + dir.getAbsolutePath() + " created");
+    private synchronized void loadTables() {
+        RedoLog.Recovery recovery;
+        try {
+            DataConverter.convertTables(getRedoLogFile().getParentFile(), m_name, m_redoLog, m_global);
+            recovery = m_redoLog.recover(m_global);
+            m_recoveryStats = recovery.getStats();
+        } catch (IOException e) {
+            logger.error("Error recovering from " + getCheckpointFile().getAbsolutePath() + ". Message: "
+                    + e.getMessage());
+            throw new UncheckedIOException("RM " + m_name + " failed to recover", e);
+        }
+        for(Map.Entry<Integer, Map<String, RMItem>> entry : recovery.getTables().entrySet()) {
+            int tid = entry.getKey();
+            RMHashtable table = new RMHashtable();
+            for(Map.Entry<String, RMItem> item : entry.getValue().entrySet()) {
+                table.put(item.getKey(), item.getValue() == null ? RM_NULL : item.getValue());
+            }
+            m_tables.put(tid, table);
+            m_writeSets.put(tid, ConcurrentHashMap.newKeySet());
+            m_writeSets.get(tid).addAll(table.keySet());
+            if(recovery.getPrepared().contains(tid)) {
+                m_vrMap.put(tid, VR_REQUESTED);
+                if(m_optimistic) {
+                    m_validated.add(tid);
+                }
             }
         }
-
-        try(FileOutputStream fos = new FileOutputStream(lockFile); ObjectOutputStream obj = new ObjectOutputStream(fos)) {
-            obj.writeObject(m_lockManager);
-            logger.info("File " + lockFile.getAbsolutePath() + " updated!");
-        } catch (IOException e) {
-            logger.error("Error writing file " + lockFile.getAbsolutePath() + ". Message: " + e.getMessage());
+        for(Integer tid : recovery.getCommitted()) {
+            m_vrMap.put(tid, VR_COMMITED);
+        }
+        for(Integer tid : recovery.getAborted()) {
+            m_vrMap.put(tid, VR_ABORT);
         }
+        logger.info("RM " + m_name + " recovered " + m_global.size() + " items and "
+                + recovery.getTables().size() + " unfinished transactions");
     }
 
     /**
-     * Load lock manager from file
+     * Lock again the items written by the recovered transactions. Locks
+     * are not stored: a transaction which did not vote before the restart
+     * is aborted by the middleware, and a prepared transaction must keep
+     * its write locks until the decision arrives. Its read locks are not
+     * needed anymore once it voted.
      */
-    private synchronized void loadLocks() {
-        File lockFile = getLockFile();
-        if(lockFile.exists()) {
-            try (FileInputStream fis = new FileInputStream(lockFile); ObjectInputStream ois = new ObjectInputStream(fis)){
-                m_lockManager = (LockManager) ois.readObject();
-                logger.info("Lock file " + lockFile.getAbsolutePath() + " loaded");
-            } catch (ClassNotFoundException | IOException e) {
-                logger.error("Error loading file " + lockFile.getAbsolutePath() + ". Message: " + e.getMessage());
+    private void loadLocks() {
+        // Locks used to be stored as a serialized lock manager
+        File legacyLockFile = new File("data_"+ m_name + "/" + m_name + "_LM");
+        if(legacyLockFile.exists() && legacyLockFile.delete()) {
+            logger.info("Legacy lock file " + legacyLockFile.getAbsolutePath() + " deleted");
+        }
+
+        if(m_optimistic) {
+            return;
+        }
+        for(Map.Entry<Integer, Set<String>> writeSet : m_writeSets.entrySet()) {
+            for(String key : writeSet.getValue()) {
+                m_lockManager.restore(writeSet.getKey(), key, TrxnObj.WRITE);
             }
-        } else {
-            logger.info("RM " + m_name + " did not find any lock file to load. Starting empty");
         }
     }
 
+    /**
+     * Vote on a transaction. A transaction which did not write anything
+     * on this RM votes read-only: its locks are released right away and
+     * it does not take part in the second phase.
+     * @param tid
+     * @return VOTE_YES, VOTE_NO or VOTE_READ_ONLY
+     * @throws RemoteException
+     */
     @Override
-    public boolean voteRequest(int tid) throws RemoteException {
+    public int voteRequest(int tid) throws RemoteException {
         logger.info("Received a vote request for transaction " + tid + ". Will reply shortly");
 
         // Crash case: CC_2
@@ -809,17 +1345,43 @@ public class ResourceManagerImpl implements ResourceManager {
             crash(null);
         }
 
-        boolean answer = false;
+        int answer = VOTE_NO;
         if(!m_vrMap.containsKey(tid)) {
-            logger.info("Sending YES");
-            m_vrMap.put(tid, VR_REQUESTED);
-            answer = true;
+            if(m_optimistic && !m_snapshots.containsKey(tid) && !validate(tid)) {
+                logger.info("Sending NO because validation failed");
+            } else if(m_snapshots.containsKey(tid) || !m_writeSets.containsKey(tid)) {
+                logger.info("Sending READ ONLY");
+                endSnapshot(tid);
+                deleteTable(tid);
+                m_vrMap.put(tid, VR_COMMITED);
+                answer = VOTE_READ_ONLY;
+            } else {
+                // An abort received while voting wins, nothing is
+                // prepared once the abort deleted the transaction
+                boolean logged = true;
+                try {
+                    if(m_redoLog.prepare(tid)) {
+                        m_redoLog.force();
+                    }
+                } catch (IOException e) {
+                    logger.error("Prepare for transaction " + tid + " could not be logged. Message: " + e.getMessage());
+                    logged = false;
+                }
+                if(!logged) {
+                    logger.info("Sending NO because the vote could not be logged");
+                } else if(m_vrMap.putIfAbsent(tid, VR_REQUESTED) == null) {
+                    logger.info("Sending YES");
+                    answer = VOTE_YES;
+                } else {
+                    logger.info("Sending NO because the transaction aborted while voting");
+                }
+            }
         } else if(m_vrMap.get(tid) == VR_REQUESTED) {
             logger.warn("Resending a YES");
-            answer = true;
+            answer = VOTE_YES;
         } else if(m_vrMap.get(tid) == VR_COMMITED) {
             logger.warn("Resending a YES but commit will be ignored");
-            answer = true;
+            answer = VOTE_YES;
         } else if(m_vrMap.get(tid) == VR_ABORT) {
             logger.warn("Sending a NO because already aborted");
         }
@@ -834,22 +1396,32 @@ public class ResourceManagerImpl implements ResourceManager {
     @Override
     public void syncTransactions(Set<Integer> transactions) throws RemoteException {
 
-        // Keep track of wrong transactions
-        List<Integer> deleteTransactions = new ArrayList<>();
-        for (Integer key : m_tables.keySet()) {
-            if(key != GLOBAL_TABLE && !transactions.contains(key)) {
-                deleteTransactions.add(key);
-            }
-        }
+        // Keep track of wrong transactions, including lock holders without
+        // a table such as a transaction whose locks were restored
+        Set<Integer> deleteTransactions = new HashSet<>(m_tables.keySet());
+        deleteTransactions.addAll(m_lockManager.getHolders());
+        deleteTransactions.removeAll(transactions);
 
         // Delete transactions
         for(Integer tid : deleteTransactions) {
             logger.info("Transaction " + tid + " was not found while syncing.");
             deleteTable(tid);
         }
+
+        // End snapshots of transactions which are gone
+        for(Integer tid : new ArrayList<>(m_snapshots.keySet())) {
+            if(!transactions.contains(tid)) {
+                logger.info("Snapshot transaction " + tid + " was not found while syncing.");
+                endSnapshot(tid);
+            }
+        }
     }
 
     @Override
+    public String queryLockStats() throws RemoteException {
+        return "RM " + m_name + ": " + m_lockManager.getStats().toString();
+    }
+
     public boolean crash(String name) throws RemoteException {
         logger.info("RM will crash now");
         System.exit(1);
@@ -0,0 +1,159 @@
+package rm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Older versions of the items of the global table, kept for snapshot reads.
+ *
+ * Every commit is stamped with a sequence number. A snapshot sees the
+ * commits stamped up to the sequence number current when it started. The
+ * global table always holds the latest version of each item; the version
+ * an item had before a commit is only kept while a snapshot may still need
+ * it, so without snapshots nothing is kept at all.
+ *
+ * The global table must only be changed by a commit holding the monitor of
+ * this store, and snapshot reads must hold it while reading the latest
+ * version, so a snapshot never sees half of a commit.
+ */
+public class VersionStore {
+
+    // Sequence number of the last commit
+    private long m_lastCommit = 0;
+
+    // Sequence number of the commit which wrote the latest version of an item
+    private Map<String, Long> m_lastWrite = new HashMap<>();
+
+    // Previous versions of an item, newest first
+    private Map<String, LinkedList<Version>> m_history = new HashMap<>();
+
+    // Active snapshots: sequence number -> number of snapshots
+    private TreeMap<Long, Integer> m_snapshots = new TreeMap<>();
+
+    /**
+     * Start a snapshot of the committed state
+     * @return snapshot sequence number
+     */
+    public synchronized long beginSnapshot() {
+        m_snapshots.merge(m_lastCommit, 1, Integer::sum);
+        return m_lastCommit;
+    }
+
+    /**
+     * End a snapshot and drop the versions nobody can read anymore
+     * @param snapshot
+     */
+    public synchronized void endSnapshot(long snapshot) {
+        Integer count = m_snapshots.get(snapshot);
+        if(count == null) {
+            return;
+        }
+        if(count > 1) {
+            m_snapshots.put(snapshot, count - 1);
+        } else {
+            m_snapshots.remove(snapshot);
+        }
+        prune();
+    }
+
+    /**
+     * Start a commit
+     * @return sequence number of the commit
+     */
+    public synchronized long nextCommit() {
+        return ++m_lastCommit;
+    }
+
+    /**
+     * Record that a commit replaces the latest version of an item. Must be
+     * called before the global table is updated.
+     * @param key
+     * @param previous latest version, null if the item did not exist
+     * @param commit sequence number of the commit
+     */
+    public synchronized void supersede(String key, RMItem previous, long commit) {
+        Long lastWrite = m_lastWrite.put(key, commit);
+        if(!m_snapshots.isEmpty()) {
+            m_history.computeIfAbsent(key, k -> new LinkedList<>())
+                    .addFirst(new Version(lastWrite == null ? 0 : lastWrite, previous));
+        }
+    }
+
+    /**
+     * Get the version of the latest value of an item
+     * @param key
+     * @return sequence number of the commit which wrote it, 0 if never written
+     */
+    public synchronized long version(String key) {
+        Long lastWrite = m_lastWrite.get(key);
+        return lastWrite == null ? 0 : lastWrite;
+    }
+
+    /**
+     * Read an item as of a snapshot
+     * @param key
+     * @param latest latest version in the global table, or null
+     * @param snapshot
+     * @return version visible to the snapshot, or null if the item did not exist
+     */
+    public synchronized RMItem read(String key, RMItem latest, long snapshot) {
+        Long lastWrite = m_lastWrite.get(key);
+        if(lastWrite == null || lastWrite <= snapshot) {
+            return latest;
+        }
+        LinkedList<Version> versions = m_history.get(key);
+        if(versions != null) {
+            for(Version version : versions) {
+                if(version.m_commit <= snapshot) {
+                    return version.m_value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep, for each item, the versions newer than the oldest snapshot plus
+     * the one visible to it
+     */
+    private void prune() {
+        if(m_snapshots.isEmpty()) {
+            m_history.clear();
+            return;
+        }
+        long oldest = m_snapshots.firstKey();
+        Iterator<LinkedList<Version>> it = m_history.values().iterator();
+        while(it.hasNext()) {
+            LinkedList<Version> versions = it.next();
+            Iterator<Version> vit = versions.iterator();
+            boolean visible = false;
+            while(vit.hasNext()) {
+                Version version = vit.next();
+                if(visible) {
+                    vit.remove();
+                } else if(version.m_commit <= oldest) {
+                    visible = true;
+                }
+            }
+            if(versions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A version of an item and the commit which wrote it
+     */
+    private static class Version {
+        private long m_commit;
+        private RMItem m_value;
+
+        Version(long commit, RMItem value) {
+            m_commit = commit;
+            m_value = value;
+        }
+    }
+}
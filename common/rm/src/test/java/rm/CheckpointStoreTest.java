@@ -0,0 +1,132 @@
+package rm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class CheckpointStoreTest {
+
+    private File m_dir;
+    private File m_baseFile;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = Files.createTempDirectory("checkpoint").toFile();
+        m_baseFile = RedoLog.getCheckpointFile(m_dir, "test");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    /**
+     * Load the checkpoint from a new store, as after a restart
+     * @return heap items
+     */
+    private RMHashtable reload() throws IOException {
+        return new CheckpointStore(m_baseFile).load(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Get the number of seats of a flight in a table
+     * @param table
+     * @param flightNum
+     * @return number of seats
+     */
+    private static int seats(RMHashtable table, int flightNum) {
+        return ((Flight) table.get(Flight.getKey(flightNum))).getCount();
+    }
+
+    @Test
+    public void deltasAppliedInOrder_test() throws IOException {
+        CheckpointStore store = new CheckpointStore(m_baseFile);
+        RMHashtable base = new RMHashtable();
+        base.put(Flight.getKey(1), new Flight(1, 10, 50));
+        store.writeBase(base);
+
+        Map<String, RMItem> delta = new HashMap<>();
+        delta.put(Flight.getKey(1), new Flight(1, 9, 50));
+        delta.put(Flight.getKey(2), new Flight(2, 5, 60));
+        store.writeDelta(delta);
+        store.writeDelta(Collections.singletonMap(Flight.getKey(2), null));
+        assertEquals(2, store.getDeltas());
+
+        RMHashtable table = reload();
+        assertEquals(9, seats(table, 1));
+        assertFalse(table.containsKey(Flight.getKey(2)));
+    }
+
+    @Test
+    public void compaction_test() throws Exception {
+        CheckpointStore store = new CheckpointStore(m_baseFile);
+        int deltas = 20;
+        for(int i = 1; i <= deltas; i++) {
+            Map<String, RMItem> delta = new HashMap<>();
+            delta.put(Flight.getKey(0), new Flight(0, i, 50));
+            delta.put(Flight.getKey(i), new Flight(i, i, 50));
+            store.writeDelta(delta);
+        }
+
+        // the deltas are merged into the base image in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while(store.getDeltas() >= 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getDeltas() < 8);
+        assertTrue(m_baseFile.exists());
+
+        RMHashtable table = reload();
+        assertEquals(deltas + 1, table.size());
+        assertEquals(deltas, seats(table, 0));
+        for(int i = 1; i <= deltas; i++) {
+            assertEquals(i, seats(table, i));
+        }
+    }
+
+    @Test
+    public void mergedDeltaIgnored_test() throws IOException {
+        CheckpointStore store = new CheckpointStore(m_baseFile);
+        store.writeDelta(Collections.singletonMap(Flight.getKey(1), new Flight(1, 1, 50)));
+        File delta = new File(m_baseFile.getPath() + ".1");
+        byte[] deltaBytes = Files.readAllBytes(delta.toPath());
+
+        RMHashtable base = new RMHashtable();
+        base.put(Flight.getKey(1), new Flight(1, 2, 50));
+        store.writeBase(base);
+        assertFalse(delta.exists());
+
+        // a crash before the merged delta was deleted leaves it behind
+        Files.write(delta.toPath(), deltaBytes);
+        assertEquals(2, seats(reload(), 1));
+        assertFalse(delta.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void serializedBaseRejected_test() throws IOException {
+        RMHashtable base = new RMHashtable();
+        base.put(Flight.getKey(1), new Flight(1, 1, 50));
+        try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(m_baseFile))) {
+            out.writeObject(base);
+        }
+        reload();
+    }
+}
@@ -0,0 +1,107 @@
+package rm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class InventoryStoreTest {
+
+    private File m_dir;
+    private File m_file;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = Files.createTempDirectory("inventory").toFile();
+        m_file = InventoryStore.getFile(m_dir, "test");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    @Test
+    public void putGetRemove_test() throws IOException {
+        InventoryStore store = new InventoryStore(m_file);
+        store.put(Flight.getKey(100), new Flight(100, 10, 50));
+        store.put(Car.getKey("montreal"), new Car("montreal", 5, 30));
+        store.put(Hotel.getKey("montreal"), new Hotel("montreal", 3, 80));
+        assertEquals(3, store.size());
+
+        Car car = (Car) store.get(Car.getKey("montreal"));
+        assertEquals(5, car.getCount());
+        assertEquals(30, car.getPrice());
+        assertEquals("montreal", car.getLocation());
+
+        // updated in place
+        store.put(Car.getKey("montreal"), new Car("montreal", 4, 30));
+        assertEquals(4, ((Car) store.get(Car.getKey("montreal"))).getCount());
+        assertEquals(3, store.size());
+
+        assertTrue(store.remove(Flight.getKey(100)));
+        assertFalse(store.remove(Flight.getKey(100)));
+        assertNull(store.get(Flight.getKey(100)));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void growth_test() throws IOException {
+        InventoryStore store = new InventoryStore(m_file);
+        long initialLength = m_file.length();
+        int items = 5000;
+        for(int i = 0; i < items; i++) {
+            store.put(Flight.getKey(i), new Flight(i, i % 100, 50 + i));
+        }
+        assertTrue(m_file.length() > initialLength);
+        assertEquals(items, store.size());
+        for(int i = 0; i < items; i++) {
+            Flight flight = (Flight) store.get(Flight.getKey(i));
+            assertEquals(i % 100, flight.getCount());
+            assertEquals(50 + i, flight.getPrice());
+        }
+
+        // the grown file is found again on restart
+        store.force();
+        InventoryStore reopened = new InventoryStore(m_file);
+        assertEquals(items, reopened.size());
+        assertEquals(42, ((Flight) reopened.get(Flight.getKey(4242))).getCount());
+    }
+
+    @Test
+    public void reuseDeletedSlots_test() throws IOException {
+        InventoryStore store = new InventoryStore(m_file);
+        long initialLength = m_file.length();
+
+        // deleting and adding items keeps the number of used slots low
+        for(int round = 0; round < 10; round++) {
+            for(int i = 0; i < 500; i++) {
+                store.put(Flight.getKey(round * 500 + i), new Flight(round * 500 + i, 1, 1));
+            }
+            for(int i = 0; i < 500; i++) {
+                assertTrue(store.remove(Flight.getKey(round * 500 + i)));
+            }
+        }
+        assertEquals(0, store.size());
+        assertTrue(m_file.length() <= 2 * initialLength);
+    }
+
+    @Test
+    public void acceptsOnlyReservableItems_test() {
+        assertTrue(InventoryStore.accepts(Flight.getKey(1), new Flight(1, 1, 1)));
+        assertFalse(InventoryStore.accepts(Customer.getKey(1), new Customer(1)));
+        String location = new String(new char[64]).replace('\0', 'x');
+        assertFalse(InventoryStore.accepts(Car.getKey(location), new Car(location, 1, 1)));
+    }
+}
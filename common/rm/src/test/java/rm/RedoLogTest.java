@@ -0,0 +1,193 @@
+package rm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class RedoLogTest {
+
+    private File m_dir;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = Files.createTempDirectory("redo").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(m_dir);
+    }
+
+    /**
+     * Delete a file or a directory
+     * @param file
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Open the redo log of the test
+     * @return redo log
+     */
+    private RedoLog openLog() {
+        return new RedoLog(RedoLog.getLogFile(m_dir, "test"), RedoLog.getCheckpointFile(m_dir, "test"));
+    }
+
+    /**
+     * Write a committed, a prepared and an unfinished transaction, the
+     * unfinished one being the last record of the log
+     */
+    private void writeTransactions() throws IOException {
+        RedoLog log = openLog();
+        log.recover(new GlobalTable(null));
+        log.put(1, Flight.getKey(100), new Flight(100, 10, 50));
+        log.commit(1);
+        log.put(2, Flight.getKey(200), new Flight(200, 20, 60));
+        assertTrue(log.prepare(2));
+        log.put(3, Flight.getKey(300), new Flight(300, 30, 70));
+        log.force();
+        log.close();
+    }
+
+    /**
+     * Change the length of the log
+     * @param delta bytes to add, or to cut if negative
+     */
+    private void resizeLog(int delta) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(RedoLog.getLogFile(m_dir, "test"), "rw")) {
+            file.setLength(file.length() + delta);
+        }
+    }
+
+    @Test
+    public void recover_test() throws IOException {
+        writeTransactions();
+        GlobalTable global = new GlobalTable(null);
+        RedoLog.Recovery recovery = openLog().recover(global);
+        assertEquals(10, ((Flight) global.get(Flight.getKey(100))).getCount());
+        assertFalse(global.containsKey(Flight.getKey(200)));
+        assertTrue(recovery.getCommitted().contains(1));
+        assertTrue(recovery.getPrepared().contains(2));
+        assertTrue(recovery.getTables().containsKey(2));
+        assertTrue(recovery.getTables().containsKey(3));
+        assertFalse(recovery.getPrepared().contains(3));
+    }
+
+    @Test
+    public void tornTail_test() throws IOException {
+        writeTransactions();
+
+        // the last record was only partly written
+        resizeLog(-3);
+        RedoLog.Recovery recovery = openLog().recover(new GlobalTable(null));
+        assertTrue(recovery.getCommitted().contains(1));
+        assertTrue(recovery.getPrepared().contains(2));
+        assertFalse(recovery.getTables().containsKey(3));
+    }
+
+    @Test
+    public void zeroFilledTail_test() throws IOException {
+        writeTransactions();
+
+        // the file grew but the records were not written
+        resizeLog(64);
+        RedoLog.Recovery recovery = openLog().recover(new GlobalTable(null));
+        assertTrue(recovery.getPrepared().contains(2));
+        assertTrue(recovery.getTables().containsKey(3));
+    }
+
+    @Test
+    public void corruptedRecord_test() throws IOException {
+        writeTransactions();
+
+        // flip a bit in the item of the last record
+        File logFile = RedoLog.getLogFile(m_dir, "test");
+        try(RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(file.length() - 2);
+            int b = file.read();
+            file.seek(file.length() - 2);
+            file.write(b ^ 1);
+        }
+        RedoLog.Recovery recovery = openLog().recover(new GlobalTable(null));
+        assertTrue(recovery.getPrepared().contains(2));
+        assertFalse(recovery.getTables().containsKey(3));
+    }
+
+    @Test
+    public void recoveredLogAcceptsRecords_test() throws IOException {
+        writeTransactions();
+        RedoLog log = openLog();
+        log.recover(new GlobalTable(null));
+
+        // the prepared transaction commits after the restart
+        log.commit(2);
+        log.force();
+        log.close();
+
+        GlobalTable global = new GlobalTable(null);
+        RedoLog.Recovery recovery = openLog().recover(global);
+        assertEquals(20, ((Flight) global.get(Flight.getKey(200))).getCount());
+        assertEquals(10, ((Flight) global.get(Flight.getKey(100))).getCount());
+        assertTrue(recovery.getTables().containsKey(3));
+    }
+
+    @Test
+    public void parallelRecoveryAppliesInOrder_test() throws IOException {
+        // many transactions update the same few flights, one out of four is unfinished
+        RedoLog log = openLog();
+        log.recover(new GlobalTable(null));
+        int transactions = 400;
+        int committed = 0;
+        for(int tid = 1; tid <= transactions; tid++) {
+            log.put(tid, Flight.getKey(tid % 10), new Flight(tid % 10, tid, 50));
+            if(tid % 4 != 0) {
+                log.commit(tid);
+                committed++;
+            }
+        }
+        log.force();
+        log.close();
+
+        GlobalTable global = new GlobalTable(null);
+        RedoLog.Recovery recovery = openLog().recover(global);
+        for(int flightNum = 0; flightNum < 10; flightNum++) {
+            int last = transactions - 10 + flightNum;
+            if(last % 4 == 0) {
+                last -= 10;
+            }
+            assertEquals(last, ((Flight) global.get(Flight.getKey(flightNum))).getCount());
+        }
+        RecoveryStats stats = recovery.getStats();
+        assertEquals(transactions + committed, stats.getRecords());
+        assertEquals(10, stats.getItems());
+        assertEquals(transactions - committed, stats.getUnfinishedTransactions());
+        assertEquals(Runtime.getRuntime().availableProcessors(), stats.getThreads());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void unreadableCheckpointStopsRM_test() throws IOException {
+        File dir = new File("data_" + m_dir.getName());
+        try {
+            assertTrue(dir.mkdirs());
+            Files.write(RedoLog.getCheckpointFile(dir, m_dir.getName()).toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            new ResourceManagerImpl(m_dir.getName());
+        } finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package rm;
+
+import lm.DeadlockException;
+import lm.DeadlockPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.transaction.InvalidTransactionException;
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ResourceManagerImplTest {
+
+    private String m_name;
+
+    @Before
+    public void setUp() {
+        m_name = "test" + System.nanoTime();
+    }
+
+    @After
+    public void tearDown() {
+        delete(new File("data_" + m_name));
+    }
+
+    /**
+     * Delete a file or a directory
+     * @param file
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Check that a call is still blocked on a lock
+     * @param future
+     */
+    private static void assertBlocked(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Call should be waiting for a lock");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Query the seats of a flight from another thread
+     * @param rm
+     * @param id
+     * @param flightNum
+     * @return future number of seats
+     */
+    private static CompletableFuture<Integer> queryFlightAsync(ResourceManagerImpl rm, int id, int flightNum) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return rm.queryFlight(id, flightNum);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void preparedWriteLocksSurviveRestart_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.commit(1));
+        assertEquals(10, rm.queryFlight(2, 100));
+        rm.abort(2);
+        assertTrue(rm.addFlight(3, 100, 5, 50));
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(3));
+        rm.shutdown();
+
+        // the prepared transaction still holds its write lock after a restart
+        ResourceManagerImpl restarted = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        CompletableFuture<Integer> seats = queryFlightAsync(restarted, 4, 100);
+        assertBlocked(seats);
+        assertTrue(restarted.commit(3));
+        assertEquals(15, (int) seats.get(5, TimeUnit.SECONDS));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void syncReleasesLocksOfUnknownTransactions_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.addFlight(1, 200, 10, 50));
+        assertTrue(rm.commit(1));
+        assertTrue(rm.addFlight(2, 100, 5, 50));
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(2));
+        rm.shutdown();
+
+        // the middleware lost both the prepared transaction and a reader
+        ResourceManagerImpl restarted = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertEquals(10, restarted.queryFlight(3, 200));
+        restarted.syncTransactions(new HashSet<>(Collections.singleton(4)));
+
+        assertEquals(10, (int) queryFlightAsync(restarted, 4, 100).get(5, TimeUnit.SECONDS));
+        assertTrue(restarted.addFlight(4, 200, 1, 50));
+        assertTrue(restarted.commit(4));
+        restarted.abort(3);
+        assertEquals(11, restarted.queryFlight(5, 200));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void commitOnePhase_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.commitOnePhase(1));
+
+        // resent after a lost reply
+        assertTrue(rm.commitOnePhase(1));
+
+        assertTrue(rm.addFlight(2, 100, 5, 50));
+        rm.abort(2);
+        assertFalse(rm.commitOnePhase(2));
+
+        // a read-only transaction only releases its locks
+        assertEquals(10, rm.queryFlight(3, 100));
+        assertTrue(rm.commitOnePhase(3));
+        assertTrue(rm.addFlight(4, 100, 1, 50));
+        assertTrue(rm.commitOnePhase(4));
+
+        // an unknown transaction is not left behind as committing
+        try {
+            rm.commitOnePhase(6);
+            fail("Transaction 6 is unknown");
+        } catch (InvalidTransactionException e) {
+            // expected
+        }
+        assertEquals(ResourceManagerImpl.VOTE_READ_ONLY, rm.voteRequest(6));
+        rm.shutdown();
+
+        ResourceManagerImpl restarted = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertEquals(11, restarted.queryFlight(5, 100));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void failedSyncVotesNo_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.commit(1));
+
+        rm.getRedoLog().setSyncer(() -> {
+            throw new IOException("Injected sync failure");
+        });
+        assertTrue(rm.addFlight(2, 100, 5, 50));
+        assertEquals(ResourceManagerImpl.VOTE_NO, rm.voteRequest(2));
+
+        // the changes are not applied
+        try {
+            rm.commit(2);
+            fail("Commit should fail when the log cannot be synced");
+        } catch (RemoteException e) {
+            // expected
+        }
+        rm.abort(2);
+        assertEquals(10, rm.queryFlight(3, 100));
+
+        // the log refuses changes from now on
+        try {
+            rm.addFlight(4, 200, 1, 50);
+            fail("Transaction 4 should have been aborted");
+        } catch (DeadlockException e) {
+            assertEquals(4, e.GetXId());
+        }
+        rm.shutdown();
+    }
+
+    @Test
+    public void woundedIdleTransactionAborted_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.WOUND_WAIT);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.commit(1));
+
+        // the younger transaction holds a write lock and does nothing else
+        assertTrue(rm.addFlight(3, 100, 5, 50));
+
+        // the older transaction wounds it instead of waiting for its decision
+        assertEquals(10, (int) queryFlightAsync(rm, 2, 100).get(5, TimeUnit.SECONDS));
+
+        // the wounded transaction learns about the abort on its next call
+        try {
+            rm.queryFlight(3, 100);
+            fail("Transaction 3 should have been aborted");
+        } catch (DeadlockException e) {
+            assertEquals(3, e.GetXId());
+        }
+        assertEquals(ResourceManagerImpl.VOTE_NO, rm.voteRequest(3));
+        rm.shutdown();
+    }
+
+    @Test
+    public void optimisticConflictingWriters_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT, true);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.newCustomer(1, 7));
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(1));
+        assertTrue(rm.commit(1));
+
+        // both transactions update the flight without waiting for each other
+        assertTrue(rm.reserveFlight(2, 7, 100));
+        assertTrue(rm.reserveFlight(3, 7, 100));
+
+        // only the first one to validate may commit
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(2));
+        assertEquals(ResourceManagerImpl.VOTE_NO, rm.voteRequest(3));
+        rm.abort(3);
+        assertTrue(rm.commit(2));
+        assertEquals(9, rm.queryFlight(4, 100));
+        assertEquals(ResourceManagerImpl.VOTE_READ_ONLY, rm.voteRequest(4));
+        rm.shutdown();
+    }
+
+    @Test
+    public void optimisticStaleRead_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT, true);
+        assertTrue(rm.addFlight(1, 100, 10, 50));
+        assertTrue(rm.commit(1));
+
+        assertEquals(10, rm.queryFlight(2, 100));
+        assertTrue(rm.addFlight(3, 100, 1, 50));
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(3));
+        assertTrue(rm.commit(3));
+
+        // the flight changed since transaction 2 read it
+        assertEquals(ResourceManagerImpl.VOTE_NO, rm.voteRequest(2));
+        rm.abort(2);
+        assertEquals(11, rm.queryFlight(4, 100));
+        rm.shutdown();
+    }
+
+    @Test
+    public void recoverAfterCheckpoint_test() throws Exception {
+        ResourceManagerImpl rm = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+
+        // enough commits for a checkpoint to be written on the way
+        int flights = 1100;
+        for(int tid = 1; tid <= flights; tid++) {
+            assertTrue(rm.addFlight(tid, tid, tid % 50, 100));
+            assertTrue(rm.commitOnePhase(tid));
+        }
+        assertTrue(rm.deleteFlight(flights + 1, 7));
+        assertTrue(rm.commit(flights + 1));
+        assertTrue(rm.addFlight(flights + 2, 1, 5, 100));
+        assertEquals(ResourceManagerImpl.VOTE_YES, rm.voteRequest(flights + 2));
+        assertTrue(rm.addFlight(flights + 3, 2, 5, 100));
+        rm.shutdown();
+
+        ResourceManagerImpl restarted = new ResourceManagerImpl(m_name, DeadlockPolicy.DETECT);
+        int tid = flights + 10;
+        for(int flightNum = 3; flightNum <= flights; flightNum++) {
+            assertEquals(flightNum == 7 ? 0 : flightNum % 50, restarted.queryFlight(tid, flightNum));
+        }
+        restarted.abort(tid);
+
+        // the prepared transaction is kept, the unfinished one is dropped once synced
+        restarted.syncTransactions(new HashSet<>(Collections.singleton(flights + 2)));
+        assertTrue(restarted.commit(flights + 2));
+        assertEquals(6, restarted.queryFlight(tid + 1, 1));
+        assertEquals(2, restarted.queryFlight(tid + 1, 2));
+        restarted.shutdown();
+    }
+}
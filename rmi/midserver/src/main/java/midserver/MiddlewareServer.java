@@ -8,6 +8,7 @@ import lm.DeadlockException;
 import lm.TransactionAbortedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import storage.DurableFile;
 import tm.Transaction;
 import tm.TransactionManager;
 
@@ -21,24 +22,36 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 class MiddlewareServer implements ResourceManager {
 
-    // Sync lock
-    private final static Object lockCar = new Object();
-    private final static Object lockRoom = new Object();
-    private final static Object lockFlight = new Object();
-
     // RM components
-    private ResourceManager m_carRM;
-    private ResourceManager m_flightRM;
-    private ResourceManager m_roomRM;
+    private volatile ResourceManager m_carRM;
+    private volatile ResourceManager m_flightRM;
+    private volatile ResourceManager m_roomRM;
+
+    // Threads calling several RMs at once
+    private final ExecutorService m_rmExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RM-call");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // Program exit codes
     private static final int CODE_ERROR=1;
 
     // Transaction manager
-    private TransactionManager m_tm;
+    private volatile TransactionManager m_tm;
 
     // RM Registry
     private static Registry s_registry;
@@ -68,11 +81,25 @@ class MiddlewareServer implements ResourceManager {
     private final String DECISION_COMMIT = "commit";
     private final String DECISION_ABORT = "abort";
 
+    // Attempts to connect to an RM, and the time between them
+    private static final int CONNECT_SLEEP = 5000;
+    private static final int MAX_TRIALS = 5;
+
+    // Time given to the RMs to vote, a missing vote counts as a NO. By
+    // default an RM crashing during the vote can be reconnected on its
+    // last attempt and still vote.
+    private static final long VOTE_TIMEOUT_MILLIS = Long.getLong("ms.voteTimeoutMillis",
+            (MAX_TRIALS + 1) * CONNECT_SLEEP);
+
     // Recover function call
-    private HashMap<Integer, Integer> m_recoverFunction;
+    private ConcurrentHashMap<Integer, Integer> m_recoverFunction;
 
     // RM function call
-    private HashMap<String, Set<Integer>> m_RMFunction;
+    private ConcurrentHashMap<String, Set<Integer>> m_RMFunction;
+
+    // Files of the recovery and RM functions
+    private DurableFile m_rfFile = new DurableFile(getRFFile());
+    private DurableFile m_rmfFile = new DurableFile(getRMFFile());
 
     // Crash case
     private boolean[] m_crashCase = new boolean[ResourceManager.CC_TOTAL];
@@ -96,8 +123,8 @@ class MiddlewareServer implements ResourceManager {
 
         // Initialize the transaction manager
         m_ms.m_tm = new TransactionManager();
-        m_ms.m_recoverFunction = new HashMap<>();
-        m_ms.m_RMFunction = new HashMap<>();
+        m_ms.m_recoverFunction = new ConcurrentHashMap<>();
+        m_ms.m_RMFunction = new ConcurrentHashMap<>();
 
         // Try to load TM
         m_ms.loadTM();
@@ -125,7 +152,7 @@ class MiddlewareServer implements ResourceManager {
     /**
      * Connect to RM
      */
-    private void connectToAllRm() throws RMTimeOutException {
+    private synchronized void connectToAllRm() throws RMTimeOutException {
         m_ms.m_carRM = m_ms.connectToRM(ResourceManager.RM_CAR_REF, rmRMIRegistryIP, rmRMIRegistryPort);
         m_ms.m_flightRM = m_ms.connectToRM(ResourceManager.RM_FLIGHT_REF, rmRMIRegistryIP, rmRMIRegistryPort);
         m_ms.m_roomRM = m_ms.connectToRM(ResourceManager.RM_ROOM_REF, rmRMIRegistryIP, rmRMIRegistryPort);
@@ -159,6 +186,22 @@ class MiddlewareServer implements ResourceManager {
         abortThread.start();
     }
 
+    /**
+     * Middleware server calling the given RMs, without the thread aborting
+     * idle transactions
+     * @param carRM
+     * @param flightRM
+     * @param roomRM
+     */
+    MiddlewareServer(ResourceManager carRM, ResourceManager flightRM, ResourceManager roomRM) {
+        m_tm = new TransactionManager();
+        m_recoverFunction = new ConcurrentHashMap<>();
+        m_RMFunction = new ConcurrentHashMap<>();
+        m_carRM = carRM;
+        m_flightRM = flightRM;
+        m_roomRM = roomRM;
+    }
+
     private static MiddlewareServer bindRM(String key, int port) {
         MiddlewareServer obj = new MiddlewareServer();
         final int BIND_SLEEP = 5000;
@@ -197,8 +240,6 @@ class MiddlewareServer implements ResourceManager {
      * @param key
      */
     private ResourceManager connectToRM(String key, String server, int port) throws RMTimeOutException {
-        final int CONNECT_SLEEP = 5000;
-        final int MAX_TRIALS = 5;
         int count = 0;
         while (count++ < MAX_TRIALS) {
             try {
@@ -258,22 +299,14 @@ class MiddlewareServer implements ResourceManager {
         writeRF();
     }
 
-    /**
-     * Abort RF
-     * @param tid
-     */
-    public void abortRF(int tid) {
-        m_recoverFunction.put(tid, RF_ABORT);
-        writeRF();
-    }
-
     /**
      * Deleted RF
      * @param tid
      */
     public void deleteRF(int tid) {
-        m_recoverFunction.remove(tid);
-        writeRF();
+        if(m_recoverFunction.remove(tid) != null) {
+            writeRF();
+        }
     }
 
     /**
@@ -293,28 +326,30 @@ class MiddlewareServer implements ResourceManager {
     }
 
     /**
-     * Write transaction manager to file
+     * Write RM function to file
      */
-    private synchronized void writeRMF() {
-        File rmfFile = getRMFFile();
-        try(FileOutputStream fos = new FileOutputStream(rmfFile); ObjectOutputStream obj = new ObjectOutputStream(fos)) {
-            obj.writeObject(m_RMFunction);
-            logger.info("File " + rmfFile.getAbsolutePath() + " updated!");
+    private void writeRMF() {
+        try {
+            synchronized(this) {
+                m_rmfFile.update(DurableFile.serialize(m_RMFunction));
+            }
+            m_rmfFile.sync();
         } catch (IOException e) {
-            logger.error("Error writing file " + rmfFile.getAbsolutePath() + ". Message: " + e.getMessage());
+            logger.error("Error writing file " + getRMFFile().getAbsolutePath() + ". Message: " + e.getMessage());
         }
     }
 
     /**
-     * Write transaction manager to file
+     * Write recovery function to file
      */
-    private synchronized void writeRF() {
-        File rfFile = getRFFile();
-        try(FileOutputStream fos = new FileOutputStream(rfFile); ObjectOutputStream obj = new ObjectOutputStream(fos)) {
-            obj.writeObject(m_recoverFunction);
-            logger.info("File " + rfFile.getAbsolutePath() + " updated!");
+    private void writeRF() {
+        try {
+            synchronized(this) {
+                m_rfFile.update(DurableFile.serialize(m_recoverFunction));
+            }
+            m_rfFile.sync();
         } catch (IOException e) {
-            logger.error("Error writing file " + rfFile.getAbsolutePath() + ". Message: " + e.getMessage());
+            logger.error("Error writing file " + getRFFile().getAbsolutePath() + ". Message: " + e.getMessage());
         }
     }
 
@@ -325,7 +360,10 @@ class MiddlewareServer implements ResourceManager {
         File rfFile = getRFFile();
         if(rfFile.exists()) {
             try (FileInputStream fis = new FileInputStream(rfFile); ObjectInputStream ois = new ObjectInputStream(fis)){
-                m_recoverFunction = (HashMap) ois.readObject();
+                Map<?, ?> recoverFunction = (Map<?, ?>) ois.readObject();
+                for(Map.Entry<?, ?> entry : recoverFunction.entrySet()) {
+                    m_recoverFunction.put((Integer) entry.getKey(), (Integer) entry.getValue());
+                }
                 logger.info("RF file " + rfFile.getAbsolutePath() + " loaded");
             } catch (ClassNotFoundException | IOException e) {
                 logger.error("Error loading file " + rfFile.getAbsolutePath() + ". Message: " + e.getMessage());
@@ -340,6 +378,7 @@ class MiddlewareServer implements ResourceManager {
                 if(m_recoverFunction.get(tid) == RF_COMMIT) {
                     commit(tid);
                 } else if(m_recoverFunction.get(tid) == RF_ABORT) {
+                    // Only found in RF files written before aborts were presumed
                     abort(tid);
                 }
             } catch (Exception e) {
@@ -356,7 +395,14 @@ class MiddlewareServer implements ResourceManager {
         File rmfFile = getRMFFile();
         if(rmfFile.exists()) {
             try (FileInputStream fis = new FileInputStream(rmfFile); ObjectInputStream ois = new ObjectInputStream(fis)){
-                m_RMFunction = (HashMap) ois.readObject();
+                Map<?, ?> rmFunction = (Map<?, ?>) ois.readObject();
+                for(Map.Entry<?, ?> entry : rmFunction.entrySet()) {
+                    Set<Integer> tids = ConcurrentHashMap.newKeySet();
+                    for(Object tid : (Set<?>) entry.getValue()) {
+                        tids.add((Integer) tid);
+                    }
+                    m_RMFunction.put((String) entry.getKey(), tids);
+                }
                 logger.info("RMF file " + rmfFile.getAbsolutePath() + " loaded");
             } catch (ClassNotFoundException | IOException e) {
                 logger.error("Error loading file " + rmfFile.getAbsolutePath() + ". Message: " + e.getMessage());
@@ -426,11 +472,8 @@ class MiddlewareServer implements ResourceManager {
      */
     private void bufferDecision(String rm, int tid, String decision) {
         String key = getBufferedKey(rm, decision);
-        if(!m_RMFunction.containsKey(key)) {
-            m_RMFunction.put(key, new HashSet<>());
-        }
         logger.info("Buffering commit decision on transaction " + tid + " for RM " + rm);
-        m_RMFunction.get(key).add(tid);
+        m_RMFunction.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(tid);
         writeRMF();
     }
 
@@ -441,909 +484,408 @@ class MiddlewareServer implements ResourceManager {
      */
     private void unbufferDecision(String rm, int tid, String decision) {
         String key = getBufferedKey(rm, decision);
-        if(m_RMFunction.containsKey(key) && m_RMFunction.get(key).contains(tid)) {
+        Set<Integer> tids = m_RMFunction.get(key);
+        if(tids != null && tids.remove(tid)) {
             logger.info("Unbuffering commit decision on transaction " + tid + " for RM " + rm);
-            m_RMFunction.get(key).remove(tid);
             writeRMF();
         }
     }
 
     /****************************
-     *      CLIENT ACTIONS
+     *      RM CALLS
      ***************************/
 
-    @Override
-    public boolean addFlight(int id, int flightNum, int flightSeats, int flightPrice)
-            throws RemoteException {
-        synchronized (lockFlight) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e){
-                throw e;
-            }
+    /**
+     * Call made on an RM, made again on the RM reconnected after a crash
+     */
+    private interface RMCall<T> {
+        T call(ResourceManager rm) throws RemoteException;
+    }
 
-            while (true) {
-                try {
-                    return m_flightRM.addFlight(id, flightNum, flightSeats, flightPrice);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_FLIGHT_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+    /**
+     * Get the RM currently connected under a name
+     * @param name
+     * @return RM
+     */
+    private ResourceManager getRM(String name) {
+        switch (name) {
+            case RM_CAR_REF:
+                return m_carRM;
+            case RM_FLIGHT_REF:
+                return m_flightRM;
+            case RM_ROOM_REF:
+                return m_roomRM;
+            default:
+                throw new RuntimeException("Unknown resource manager");
         }
     }
 
-    @Override
-    public boolean addCars(int id, String location, int numCars, int price) throws RemoteException {
-        synchronized (lockCar) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
+    /**
+     * Record activity on a transaction and the RMs it is about to use
+     * @param id
+     * @param rms
+     * @throws RemoteException
+     */
+    private void enlist(int id, String... rms) throws RemoteException {
+        try {
+            m_tm.updateLastActive(id);
+            for(String rm : rms) {
+                m_tm.addRM(id, rm);
             }
+        } catch (NullPointerException e) {
+            throw new TMException();
+        }
+    }
 
-            while (true) {
-                try {
-                    return m_carRM.addCars(id, location, numCars, price);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_CAR_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+    /**
+     * Call an RM on behalf of a transaction. The call is made again once
+     * a crashed RM is back; if it does not come back, the transaction is
+     * aborted. A deadlock aborts the transaction chosen as victim.
+     *
+     * Calls of different transactions run concurrently, the lock manager
+     * of the RM isolates them.
+     * @param id
+     * @param name
+     * @param call
+     * @return result of the call
+     * @throws RemoteException
+     */
+    private <T> T callRM(int id, String name, RMCall<T> call) throws RemoteException {
+        try {
+            return retryRM(name, call);
+        } catch (DeadlockException | RMServerDownException e) {
+            abortOnFailure(id, e);
+            throw e;
         }
     }
 
-    @Override
-    public boolean addRooms(int id, String location, int numRooms, int price) throws RemoteException {
-        synchronized (lockRoom){
+    /**
+     * Call an RM, again once it is back after a crash
+     * @param name
+     * @param call
+     * @return result of the call
+     * @throws RMServerDownException if the RM does not come back
+     */
+    private <T> T retryRM(String name, RMCall<T> call) throws RemoteException {
+        while (true) {
             try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
+                return call.call(getRM(name));
+            } catch (RemoteException e) {
                 try {
-                    return m_roomRM.addRooms(id, location, numRooms, price);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_ROOM_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
+                    onRMCrash(name);
+                } catch (RMTimeOutException e1) {
+                    throw new RMServerDownException();
                 }
             }
         }
     }
 
-    @Override
-    public int newCustomer(int id) throws RemoteException {
-        synchronized (lockRoom) {
-            synchronized (lockCar) {
-                synchronized (lockFlight) {
-                    try {
-                        try {
-                            m_tm.updateLastActive(id);
-                            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-                            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-                            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-                        } catch (NullPointerException e) {
-                            throw new TMException();
-                        } catch (InvalidTransactionException e) {
-                            throw e;
-                        }
-
-                        int cid = 0;
-                        while (true) {
-                            try {
-                                cid = m_carRM.newCustomer(id);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_CAR_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    /**
+     * Abort the transaction a failed call leaves unusable: the victim of
+     * a deadlock, or the calling transaction if an RM is down
+     * @param id
+     * @param failure
+     * @throws RemoteException
+     */
+    private void abortOnFailure(int id, Throwable failure) throws RemoteException {
+        if(failure instanceof DeadlockException) {
+            logger.error(failure.getMessage());
+            abort(((DeadlockException) failure).GetXId());
+        } else if(failure instanceof RMServerDownException) {
+            abort(id);
+        }
+    }
 
-                        while (true) {
-                            try {
-                                m_roomRM.newCustomer(id, cid);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_ROOM_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    /**
+     * Make the same call on several RMs at once, each one as callRM() does.
+     * Once every call returned, the transaction is aborted if needed and
+     * the first failure is thrown. Aborting earlier would release the locks
+     * of the transaction while the other calls still use them.
+     * @param id
+     * @param call
+     * @param names
+     * @return RM name -> result of the call
+     * @throws RemoteException
+     */
+    private <T> Map<String, T> callRMs(int id, RMCall<T> call, String... names) throws RemoteException {
+        Map<String, RMCall<T>> calls = new LinkedHashMap<>();
+        for(String name : names) {
+            calls.put(name, call);
+        }
+        return callRMs(id, calls);
+    }
 
-                        while (true) {
-                            try {
-                                m_flightRM.newCustomer(id, cid);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_FLIGHT_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    /**
+     * Make a call on each of several RMs at once, see callRMs()
+     * @param id
+     * @param calls RM name -> call
+     * @return RM name -> result of the call
+     * @throws RemoteException
+     */
+    private <T> Map<String, T> callRMs(int id, Map<String, RMCall<T>> calls) throws RemoteException {
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for(Map.Entry<String, RMCall<T>> call : calls.entrySet()) {
+            futures.put(call.getKey(), m_rmExecutor.submit(() -> retryRM(call.getKey(), call.getValue())));
+        }
 
-                        return cid;
-                    } catch (DeadlockException e) {
-                        logger.error(e.getMessage());
-                        abort(e.GetXId());
-                        throw e;
-                    }
+        Map<String, T> results = new HashMap<>();
+        Throwable failure = null;
+        for(Map.Entry<String, Future<T>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), future.getValue().get());
+            } catch (ExecutionException e) {
+                if(failure == null) {
+                    failure = e.getCause();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while calling the resource managers", e);
             }
         }
+        if(failure != null) {
+            abortOnFailure(id, failure);
+            throw toRemoteException(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the result of a call made by the executor
+     * @param future
+     * @return result of the call
+     * @throws RemoteException thrown by the call
+     * @throws InterruptedException
+     */
+    private <T> T getResult(Future<T> future) throws RemoteException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw toRemoteException(e.getCause());
+        }
+    }
+
+    /**
+     * Get the exception to throw for a failed call, runtime exceptions
+     * such as a deadlock are thrown as they are
+     * @param failure
+     * @return exception to throw
+     */
+    private RemoteException toRemoteException(Throwable failure) {
+        if(failure instanceof RemoteException) {
+            return (RemoteException) failure;
+        } else if(failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        return new RemoteException("Resource manager call failed", failure);
     }
 
+    /****************************
+     *      CLIENT ACTIONS
+     ***************************/
+
     @Override
-    public boolean newCustomer(int id, int cid) throws RemoteException {
-        synchronized (lockRoom) {
-            synchronized (lockCar) {
-                synchronized (lockFlight) {
-                    try {
-                        try {
-                            m_tm.updateLastActive(id);
-                            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-                            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-                            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-                        } catch (NullPointerException e) {
-                            throw new TMException();
-                        } catch (InvalidTransactionException e) {
-                            throw e;
-                        }
+    public boolean addFlight(int id, int flightNum, int flightSeats, int flightPrice)
+            throws RemoteException {
+        enlist(id, RM_FLIGHT_REF);
+        return callRM(id, RM_FLIGHT_REF, rm -> rm.addFlight(id, flightNum, flightSeats, flightPrice));
+    }
 
-                        boolean flight = false;
-                        boolean car = false;
-                        boolean room = false;
-                        while (true) {
-                            try {
-                                car = m_carRM.newCustomer(id, cid);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_CAR_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    @Override
+    public boolean addCars(int id, String location, int numCars, int price) throws RemoteException {
+        enlist(id, RM_CAR_REF);
+        return callRM(id, RM_CAR_REF, rm -> rm.addCars(id, location, numCars, price));
+    }
 
-                        while (true) {
-                            try {
-                                room = m_roomRM.newCustomer(id, cid);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_ROOM_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    @Override
+    public boolean addRooms(int id, String location, int numRooms, int price) throws RemoteException {
+        enlist(id, RM_ROOM_REF);
+        return callRM(id, RM_ROOM_REF, rm -> rm.addRooms(id, location, numRooms, price));
+    }
 
-                        while (true) {
-                            try {
-                                flight = m_flightRM.newCustomer(id, cid);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_FLIGHT_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-                        return flight && car && room;
-                    } catch (DeadlockException e) {
-                        logger.error(e.getMessage());
-                        abort(e.GetXId());
-                        throw e;
-                    }
-                }
+    @Override
+    public int newCustomer(int id) throws RemoteException {
+        enlist(id, RM_ROOM_REF, RM_CAR_REF, RM_FLIGHT_REF);
+
+        // The car RM generates the id, the other RMs add the customer under it at once
+        int cid = callRM(id, RM_CAR_REF, rm -> rm.newCustomer(id));
+        Map<String, Boolean> added = callRMs(id, rm -> rm.newCustomer(id, cid), RM_ROOM_REF, RM_FLIGHT_REF);
+        if(!added.containsValue(false)) {
+            return cid;
+        }
+
+        // Remove the customer from the RMs which added it if another one could not
+        added.put(RM_CAR_REF, true);
+        Map<String, RMCall<Boolean>> deletes = new HashMap<>();
+        for(Map.Entry<String, Boolean> entry : added.entrySet()) {
+            if(entry.getValue()) {
+                deletes.put(entry.getKey(), rm -> rm.deleteCustomer(id, cid));
             }
         }
+        if(callRMs(id, deletes).containsValue(false)) {
+            logger.warn("Customer " + cid + " could not be removed from all RMs. " +
+                    "Further investigation is required");
+        }
+        throw new RemoteException("Customer " + cid + " could not be added on all RMs");
     }
 
     @Override
-    public boolean deleteFlight(int id, int flightNum) throws RemoteException {
-        synchronized (lockFlight) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
+    public boolean newCustomer(int id, int cid) throws RemoteException {
+        enlist(id, RM_ROOM_REF, RM_CAR_REF, RM_FLIGHT_REF);
+        return !callRMs(id, rm -> rm.newCustomer(id, cid), RM_CAR_REF, RM_ROOM_REF, RM_FLIGHT_REF)
+                .containsValue(false);
+    }
 
-            while (true) {
-                try {
-                    return m_flightRM.deleteFlight(id, flightNum);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_FLIGHT_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+    @Override
+    public boolean deleteFlight(int id, int flightNum) throws RemoteException {
+        enlist(id, RM_FLIGHT_REF);
+        return callRM(id, RM_FLIGHT_REF, rm -> rm.deleteFlight(id, flightNum));
     }
 
     @Override
     public boolean deleteCars(int id, String location) throws RemoteException {
-        synchronized (lockCar) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_carRM.deleteCars(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_CAR_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+        enlist(id, RM_CAR_REF);
+        return callRM(id, RM_CAR_REF, rm -> rm.deleteCars(id, location));
     }
 
     @Override
     public boolean deleteRooms(int id, String location) throws RemoteException {
-        synchronized (lockRoom) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_roomRM.deleteRooms(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_ROOM_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+        enlist(id, RM_ROOM_REF);
+        return callRM(id, RM_ROOM_REF, rm -> rm.deleteRooms(id, location));
     }
 
     @Override
     public boolean deleteCustomer(int id, int customer) throws RemoteException {
-        synchronized (lockRoom) {
-            synchronized (lockCar) {
-                synchronized (lockFlight) {
-                    try {
-                        try {
-                            m_tm.updateLastActive(id);
-                            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-                            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-                            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-                        } catch (NullPointerException e) {
-                            throw new TMException();
-                        } catch (InvalidTransactionException e) {
-                            throw e;
-                        }
+        enlist(id, RM_ROOM_REF, RM_CAR_REF, RM_FLIGHT_REF);
+        return !callRMs(id, rm -> rm.deleteCustomer(id, customer), RM_ROOM_REF, RM_CAR_REF, RM_FLIGHT_REF)
+                .containsValue(false);
+    }
 
-                        boolean room = false;
-                        boolean car = false;
-                        boolean flight = false;
-                        while (true) {
-                            try {
-                                room = m_roomRM.deleteCustomer(id, customer);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_ROOM_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    @Override
+    public int queryFlight(int id, int flightNumber) throws RemoteException {
+        enlist(id, RM_FLIGHT_REF);
+        return callRM(id, RM_FLIGHT_REF, rm -> rm.queryFlight(id, flightNumber));
+    }
 
-                        while (true) {
-                            try {
-                                car = m_carRM.deleteCustomer(id, customer);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_CAR_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    @Override
+    public int queryCars(int id, String location) throws RemoteException {
+        enlist(id, RM_CAR_REF);
+        return callRM(id, RM_CAR_REF, rm -> rm.queryCars(id, location));
+    }
 
-                        while (true) {
-                            try {
-                                flight = m_flightRM.deleteCustomer(id, customer);
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_FLIGHT_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
+    @Override
+    public int queryRooms(int id, String location) throws RemoteException {
+        enlist(id, RM_ROOM_REF);
+        return callRM(id, RM_ROOM_REF, rm -> rm.queryRooms(id, location));
+    }
 
-                        return room && car && flight;
-                    } catch (DeadlockException e) {
-                        logger.error(e.getMessage());
-                        abort(e.GetXId());
-                        throw e;
-                    }
-                }
-            }
-        }
+    @Override
+    public String queryCustomerInfo(int id, int customer) throws RemoteException {
+        enlist(id, RM_CAR_REF, RM_FLIGHT_REF, RM_ROOM_REF);
+        Map<String, String> info = callRMs(id, rm -> rm.queryCustomerInfo(id, customer),
+                RM_CAR_REF, RM_FLIGHT_REF, RM_ROOM_REF);
+        return "\nCar info:\n" + info.get(RM_CAR_REF) + "\nFlight info:\n" + info.get(RM_FLIGHT_REF)
+                + "\nRoom info:\n" + info.get(RM_ROOM_REF);
     }
 
     @Override
-    public int queryFlight(int id, int flightNumber) throws RemoteException {
-        synchronized (lockFlight) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
+    public int queryFlightPrice(int id, int flightNumber) throws RemoteException {
+        enlist(id, RM_FLIGHT_REF);
+        return callRM(id, RM_FLIGHT_REF, rm -> rm.queryFlightPrice(id, flightNumber));
+    }
 
-            while (true) {
-                try {
-                    return m_flightRM.queryFlight(id, flightNumber);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_FLIGHT_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+    @Override
+    public int queryCarsPrice(int id, String location) throws RemoteException {
+        enlist(id, RM_CAR_REF);
+        return callRM(id, RM_CAR_REF, rm -> rm.queryCarsPrice(id, location));
     }
 
     @Override
-    public int queryCars(int id, String location) throws RemoteException {
-        synchronized (lockCar) {
-            try {
-                m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_carRM.queryCars(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_CAR_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+    public int queryRoomsPrice(int id, String location) throws RemoteException {
+        enlist(id, RM_ROOM_REF);
+        return callRM(id, RM_ROOM_REF, rm -> rm.queryRoomsPrice(id, location));
     }
 
     @Override
-    public int queryRooms(int id, String location) throws RemoteException {
-        synchronized (lockRoom) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_roomRM.queryRooms(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_ROOM_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+    public boolean reserveFlight(int id, int customer, int flightNumber) throws RemoteException {
+        enlist(id, RM_FLIGHT_REF);
+        return callRM(id, RM_FLIGHT_REF, rm -> rm.reserveFlight(id, customer, flightNumber));
     }
 
     @Override
-    public String queryCustomerInfo(int id, int customer) throws RemoteException {
-        synchronized (lockRoom) {
-            synchronized (lockCar) {
-                synchronized (lockFlight) {
-                    try {
-                        try {
-                            m_tm.updateLastActive(id);
-                            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-                            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-                            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-                        } catch (NullPointerException e) {
-                            throw new TMException();
-                        } catch (InvalidTransactionException e) {
-                            throw e;
-                        }
-
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("\nCar info:\n");
-                        while (true) {
-                            try {
-                                sb.append(m_carRM.queryCustomerInfo(id, customer));
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_CAR_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-
-                        sb.append("\nFlight info:\n");
-                        while (true) {
-                            try {
-                                sb.append(m_flightRM.queryCustomerInfo(id, customer));
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_FLIGHT_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-
-                        sb.append("\nRoom info:\n");
-                        while (true) {
-                            try {
-                                sb.append(m_roomRM.queryCustomerInfo(id, customer));
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_ROOM_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-                        return sb.toString();
-                    } catch (DeadlockException e) {
-                        logger.error(e.getMessage());
-                        abort(e.GetXId());
-                        throw e;
-                    }
-                }
-            }
-        }
+    public boolean reserveCar(int id, int customer, String location) throws RemoteException {
+        enlist(id, RM_CAR_REF);
+        return callRM(id, RM_CAR_REF, rm -> rm.reserveCar(id, customer, location));
     }
 
     @Override
-    public int queryFlightPrice(int id, int flightNumber) throws RemoteException {
-        synchronized (lockFlight) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_flightRM.queryFlightPrice(id, flightNumber);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_FLIGHT_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
-        }
+    public boolean reserveRoom(int id, int customer, String locationd) throws RemoteException {
+        enlist(id, RM_ROOM_REF);
+        return callRM(id, RM_ROOM_REF, rm -> rm.reserveRoom(id, customer, locationd));
     }
 
     @Override
-    public int queryCarsPrice(int id, String location) throws RemoteException {
-        synchronized (lockCar) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
+    public boolean itinerary(int id, int customer, Vector<?> flightNumbers, String location, boolean car, boolean room)
+            throws RemoteException {
+        Map<String, RMCall<Boolean>> calls = itineraryCalls(id, customer, flightNumbers, location, car, room, false);
+        enlist(id, calls.keySet().toArray(new String[calls.size()]));
 
-            while (true) {
-                try {
-                    return m_carRM.queryCarsPrice(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_CAR_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+        // Each RM reserves its part of the itinerary, all of it or nothing
+        Map<String, Boolean> reserved = callRMs(id, calls);
+        if(!reserved.containsValue(false)) {
+            return true;
         }
-    }
 
-    @Override
-    public int queryRoomsPrice(int id, String location) throws RemoteException {
-        synchronized (lockRoom) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_roomRM.queryRoomsPrice(id, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_ROOM_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+        // Cancel the parts reserved if another part could not be
+        Map<String, RMCall<Boolean>> cancels = itineraryCalls(id, customer, flightNumbers, location, car, room, true);
+        cancels.keySet().retainAll(reserved.entrySet().stream()
+                .filter(Map.Entry::getValue).map(Map.Entry::getKey).collect(Collectors.toSet()));
+        if(callRMs(id, cancels).containsValue(false)) {
+            logger.warn("Itinerary of customer " + customer + " could not be cancelled on all RMs. " +
+                    "Further investigation is required");
         }
+        return false;
     }
 
-    @Override
-    public boolean reserveFlight(int id, int customer, int flightNumber) throws RemoteException {
-        synchronized (lockFlight) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_flightRM.reserveFlight(id, customer, flightNumber);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_FLIGHT_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+    /**
+     * Get the calls reserving or cancelling an itinerary on the RMs
+     * holding its items
+     * @param id
+     * @param customer
+     * @param flightNumbers
+     * @param location
+     * @param car
+     * @param room
+     * @param cancel true to cancel the reservations
+     * @return RM name -> call
+     */
+    private Map<String, RMCall<Boolean>> itineraryCalls(int id, int customer, Vector<?> flightNumbers, String location,
+                                                        boolean car, boolean room, boolean cancel) {
+        Vector<Object> noFlights = new Vector<>();
+        Map<String, RMCall<Boolean>> calls = new HashMap<>();
+        if(!flightNumbers.isEmpty()) {
+            calls.put(RM_FLIGHT_REF, cancel
+                    ? rm -> rm.cancelItinerary(id, customer, flightNumbers, location, false, false)
+                    : rm -> rm.itinerary(id, customer, flightNumbers, location, false, false));
         }
-    }
-
-    @Override
-    public boolean reserveCar(int id, int customer, String location) throws RemoteException {
-        synchronized (lockCar) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_carRM.reserveCar(id, customer, location);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_CAR_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+        if(car) {
+            calls.put(RM_CAR_REF, cancel
+                    ? rm -> rm.cancelItinerary(id, customer, noFlights, location, true, false)
+                    : rm -> rm.itinerary(id, customer, noFlights, location, true, false));
         }
-    }
-
-    @Override
-    public boolean reserveRoom(int id, int customer, String locationd) throws RemoteException {
-        synchronized (lockRoom) {
-            try {
-                m_tm.updateLastActive(id);
-                m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-            } catch (NullPointerException e) {
-                throw new TMException();
-            } catch (InvalidTransactionException e) {
-                throw e;
-            }
-
-            while (true) {
-                try {
-                    return m_roomRM.reserveRoom(id, customer, locationd);
-                } catch (DeadlockException e) {
-                    logger.error(e.getMessage());
-                    abort(e.GetXId());
-                    throw e;
-                } catch (RemoteException e) {
-                    try {
-                        onRMCrash(RM_ROOM_REF);
-                    } catch (RMTimeOutException e1) {
-                        abort(id);
-                        throw new RMServerDownException();
-                    }
-                }
-            }
+        if(room) {
+            calls.put(RM_ROOM_REF, cancel
+                    ? rm -> rm.cancelItinerary(id, customer, noFlights, location, false, true)
+                    : rm -> rm.itinerary(id, customer, noFlights, location, false, true));
         }
+        return calls;
     }
 
     @Override
-    public boolean itinerary(int id, int customer, Vector flightNumbers, String location, boolean car, boolean room)
-            throws RemoteException {
-        synchronized (lockRoom) {
-            synchronized (lockCar) {
-                synchronized (lockFlight) {
-                    try {
-                        try {
-                            m_tm.updateLastActive(id);
-                            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
-                            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
-                            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
-                        } catch (NullPointerException e) {
-                            throw new TMException();
-                        } catch (InvalidTransactionException e) {
-                            throw e;
-                        }
-
-                        // Check if can reserve flight
-                        for (Object fNum : flightNumbers) {
-                            while (true) {
-                                try {
-                                    if (queryFlight(id, Integer.parseInt(fNum.toString())) == 0) {
-                                        return false;
-                                    }
-                                    break;
-                                } catch (RemoteException e) {
-                                    try {
-                                        onRMCrash(RM_FLIGHT_REF);
-                                    } catch (RMTimeOutException e1) {
-                                        abort(id);
-                                        throw new RMServerDownException();
-                                    }
-                                }
-                            }
-                        }
-
-                        while (true) {
-                            try {
-                                if (car && queryCars(id, location) == 0) {
-                                    return false;
-                                }
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_CAR_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-
-                        while (true) {
-                            try {
-                                if (room && queryRooms(id, location) == 0) {
-                                    return false;
-                                }
-                                break;
-                            } catch (RemoteException e) {
-                                try {
-                                    onRMCrash(RM_ROOM_REF);
-                                } catch (RMTimeOutException e1) {
-                                    abort(id);
-                                    throw new RMServerDownException();
-                                }
-                            }
-                        }
-
-
-                        // Start reserving
-                        boolean success = true;
-
-                        // Reserve flights
-                        for (Object fNum : flightNumbers) {
-                            while (true) {
-                                try {
-                                    success &= reserveFlight(id, customer, Integer.parseInt(fNum.toString()));
-                                    break;
-                                } catch (RemoteException e) {
-                                    try {
-                                        onRMCrash(RM_FLIGHT_REF);
-                                    } catch (RMTimeOutException e1) {
-                                        abort(id);
-                                        throw new RMServerDownException();
-                                    }
-                                }
-                            }
-                        }
-
-                        // If should reserve a car
-                        if (car) {
-                            while (true) {
-                                try {
-                                    success &= reserveCar(id, customer, location);
-                                    break;
-                                } catch (RemoteException e) {
-                                    try {
-                                        onRMCrash(RM_CAR_REF);
-                                    } catch (RMTimeOutException e1) {
-                                        abort(id);
-                                        throw new RMServerDownException();
-                                    }
-                                }
-                            }
-                        }
-
-                        // If should reserve a room
-                        if (room) {
-                            while (true) {
-                                try {
-                                    success &= reserveRoom(id, customer, location);
-                                    break;
-                                } catch (RemoteException e) {
-                                    try {
-                                        onRMCrash(RM_ROOM_REF);
-                                    } catch (RMTimeOutException e1) {
-                                        abort(id);
-                                        throw new RMServerDownException();
-                                    }
-                                }
-                            }
-                        }
-
-                        // If can reserve but was not successful
-                        if (!success) {
-                            logger.warn("Query showed that the user can reserve but the reservation was not successful. " +
-                                    "Further investigation is required");
-                        }
-                        return success;
-                    } catch (DeadlockException e) {
-                        logger.error(e.getMessage());
-                        abort(e.GetXId());
-                        throw e;
-                    }
-                }
-            }
-        }
+    public boolean cancelItinerary(int id, int customer, Vector<?> flightNumbers, String location, boolean car,
+                                   boolean room) throws RemoteException {
+        Map<String, RMCall<Boolean>> calls = itineraryCalls(id, customer, flightNumbers, location, car, room, true);
+        enlist(id, calls.keySet().toArray(new String[calls.size()]));
+        return !callRMs(id, calls).containsValue(false);
     }
 
     @Override
@@ -1359,11 +901,33 @@ class MiddlewareServer implements ResourceManager {
         }
     }
 
+    @Override
+    public int startReadOnly() throws RemoteException {
+        int transactionId;
+        try {
+            transactionId = m_tm.startReadOnly();
+            logger.info("Started a new read-only transaction with id: " + transactionId);
+        } catch (NullPointerException e) {
+            throw new TMException();
+        }
+
+        // Read-only transactions read snapshots, they never lock
+        startSnapshot(transactionId);
+        return transactionId;
+    }
+
     @Override
     public boolean commit(int transactionId) throws RemoteException, InvalidTransactionException {
         try {
-            // Update function
-            commitRF(transactionId);
+            // Update function. Nothing is persisted for a read-only
+            // transaction: there is nothing to recover if it is lost, nor
+            // for a transaction with one RM, which decides on its own
+            boolean readOnly = m_tm.isReadOnly(transactionId);
+            Set<String> rms = m_tm.getRMs(transactionId);
+            boolean onePhase = rms.size() == 1;
+            if(!readOnly && !onePhase) {
+                commitRF(transactionId);
+            }
             logger.info("Received a commit request on transaction " + transactionId);
             m_tm.updateLastActive(transactionId);
 
@@ -1386,9 +950,13 @@ class MiddlewareServer implements ResourceManager {
                 }).start();
             }
 
+            if(onePhase) {
+                return commitOnePhase(transactionId, rms.iterator().next());
+            }
+
             // 2PC
             logger.info("Applying 2 phase commit on all involved RMs");
-            boolean allVR = voteRequest(transactionId);
+            int allVR = voteRequest(transactionId);
 
             // Crash case: CC_4 || CC_5
             if(m_crashCase[CC_4] || m_crashCase[CC_5]) {
@@ -1398,49 +966,34 @@ class MiddlewareServer implements ResourceManager {
             logger.info("Commit phase 2: Sending decision");
 
             // If at least one VR replied NO, then abort
-            if(!allVR) {
+            if(allVR == VOTE_NO) {
                 abort(transactionId);
                 return false;
             }
 
-            // Apply commits
-            for (String rmStr : m_tm.getRMs(transactionId)) {
-                while (true) {
-                    ResourceManager rm = null;
-                    String name = "UNKNOWN";
-                    try {
-                        if (rmStr.equals(ResourceManager.RM_CAR_REF)) {
-                            name = RM_CAR_REF;
-                            rm = m_carRM;
-                        } else if (rmStr.equals(ResourceManager.RM_FLIGHT_REF)) {
-                            name = RM_FLIGHT_REF;
-                            rm = m_flightRM;
-                        } else if (rmStr.equals(ResourceManager.RM_ROOM_REF)) {
-                            name = RM_ROOM_REF;
-                            rm = m_roomRM;
-                        } else {
-                            throw new RuntimeException("Unknown resource manager");
-                        }
-                        logger.info("Commit on RM " + name);
-                        rm.commit(transactionId);
+            // RMs which voted read-only were removed from the transaction
+            // and have released its locks already, so they are skipped here
 
-                        // Crash case: CC_6
-                        if(m_crashCase[CC_6]) {
-                            crash(COMP_MS);
-                        }
-                        break;
-                    } catch (RemoteException e) {
-                        bufferDecision(name, transactionId, DECISION_COMMIT);
-                    }
+            // The decision is taken, the RMs acknowledge it in the background.
+            // If the middleware crashes meanwhile, the commit is run again
+            // on recovery and RMs which committed already ignore it.
+            sendDecision(transactionId, m_tm.getRMs(transactionId), DECISION_COMMIT).thenRun(() -> {
+                try {
+                    m_tm.removeTransaction(transactionId);
+                } catch (InvalidTransactionException e) {
+                    logger.warn("Transaction " + transactionId + " was removed before its commit was acknowledged");
+                }
+                if(!readOnly) {
+                    deleteRF(transactionId);
                 }
-            }
-            m_tm.removeTransaction(transactionId);
-            deleteRF(transactionId);
 
-            // Crash case: CC_7
-            if(m_crashCase[CC_7]) {
-                crash(COMP_MS);
-            }
+                // Crash case: CC_7
+                if(m_crashCase[CC_7]) {
+                    try {
+                        crash(COMP_MS);
+                    } catch (RemoteException e) {/*Will not throw exception*/}
+                }
+            });
             return true;
         } catch (InvalidTransactionException e) {
             throw e;
@@ -1452,32 +1005,26 @@ class MiddlewareServer implements ResourceManager {
     @Override
     public void abort(int transactionId) throws RemoteException, InvalidTransactionException {
         try {
-            abortRF(transactionId);
+            // Presumed abort: nothing is persisted before aborting, a
+            // transaction without a commit entry in the RF is aborted
             logger.info("Aborting transaction " + transactionId);
-            m_tm.updateLastActive(transactionId);
-            for (String rmStr : m_tm.getRMs(transactionId)) {
-                try {
-                    if (rmStr.equals(ResourceManager.RM_ROOM_REF)) {
-                        m_roomRM.abort(transactionId);
-                    } else if (rmStr.equals(ResourceManager.RM_FLIGHT_REF)) {
-                        m_flightRM.abort(transactionId);
-                    } else if (rmStr.equals(ResourceManager.RM_CAR_REF)) {
-                        m_carRM.abort(transactionId);
-                    } else {
-                        throw new RuntimeException("Unknown resource manager");
-                    }
-                } catch (RemoteException e) {
-                    bufferDecision(rmStr, transactionId, DECISION_ABORT);
-                }
+
+            // Several threads can abort the same transaction, e.g. the calls
+            // of one operation hitting a deadlock and the idle transaction
+            // thread. Only the one removing the transaction sends the abort.
+            Set<String> rms;
+            try {
+                rms = m_tm.getRMs(transactionId);
+                m_tm.removeTransaction(transactionId);
+            } catch (InvalidTransactionException e) {
+                logger.info("Transaction " + transactionId + " was already removed. Will delete from RF");
+                deleteRF(transactionId);
+                return;
             }
-            m_tm.removeTransaction(transactionId);
+            sendDecision(transactionId, rms, DECISION_ABORT).join();
             deleteRF(transactionId);
         } catch (NullPointerException e) {
             throw new TMException();
-        } catch (InvalidTransactionException e) {
-            logger.warn("Transaction " + transactionId + " was not found. Will delete from RF");
-            deleteRF(transactionId);
-            throw e;
         }
     }
 
@@ -1515,67 +1062,175 @@ class MiddlewareServer implements ResourceManager {
         }
     }
 
+    /**
+     * Collect the votes of the RMs involved in a transaction. RMs voting
+     * read-only are removed from the transaction since they have nothing
+     * to commit.
+     * @param tid
+     * @return VOTE_NO if any RM voted no, VOTE_READ_ONLY if all RMs voted
+     * read-only, VOTE_YES otherwise
+     * @throws RemoteException
+     */
     @Override
-    public boolean voteRequest(int tid) throws RemoteException {
+    public int voteRequest(int tid) throws RemoteException {
         logger.info("Commit phase 1: Sending vote request");
         try {
-            for (String rmStr : m_tm.getRMs(tid)) {
-                while (true) {
-                    String name = "UNKNOWN";
-                    ResourceManager rm = null;
-                    try {
-                        if (rmStr.equals(ResourceManager.RM_CAR_REF)) {
-                            name = RM_CAR_REF;
-                            rm = m_carRM;
-                        } else if (rmStr.equals(ResourceManager.RM_FLIGHT_REF)) {
-                            name = RM_FLIGHT_REF;
-                            rm = m_flightRM;
-                        } else if (rmStr.equals(ResourceManager.RM_ROOM_REF)) {
-                            name = RM_ROOM_REF;
-                            rm = m_roomRM;
-                        } else {
-                            throw new RuntimeException("Unknown resource manager");
-                        }
-                        boolean vr = rm.voteRequest(tid);
+            // Every RM votes at once, the first NO decides
+            List<String> rms = new ArrayList<>(m_tm.getRMs(tid));
+            CompletionService<Integer> votes = new ExecutorCompletionService<>(m_rmExecutor);
+            Map<Future<Integer>, String> voters = new HashMap<>();
+            for (String rmStr : rms) {
+                voters.put(votes.submit(() -> collectVote(tid, rmStr)), rmStr);
+            }
 
-                        // Crash case: CC_14
-                        if(m_crashCase[CC_14]) {
-                            vr = false;
-                        }
+            int answer = VOTE_READ_ONLY;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VOTE_TIMEOUT_MILLIS);
+            for (int i = 0; i < rms.size(); i++) {
+                Future<Integer> vote = votes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (vote == null) {
+                    logger.error("Not all RMs voted on transaction " + tid + " in time. Will consider a NO vote");
+                    return VOTE_NO;
+                }
+                int vr = getResult(vote);
+                if (vr == VOTE_NO) {
+                    return VOTE_NO;
+                } else if (vr == VOTE_READ_ONLY) {
+                    m_tm.removeRM(tid, voters.get(vote));
+                } else {
+                    answer = VOTE_YES;
+                }
+            }
+            return answer;
+        } catch (InvalidTransactionException e) {
+            logger.warn("Vote request for an non-existing transaction " + tid);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while collecting votes. Will consider a NO vote");
+            return VOTE_NO;
+        } catch (NullPointerException e) {
+            throw new TMException();
+        }
+    }
 
-                        logger.info("RM " + name + " replied with a " + (vr ? "YES" : "NO"));
-                        if (!vr) {
-                            return false;
-                        }
+    /**
+     * Get the vote of an RM, asking again once the RM is back after a crash
+     * @param tid
+     * @param name
+     * @return vote, NO if the RM does not come back
+     * @throws RemoteException
+     */
+    private int collectVote(int tid, String name) throws RemoteException {
+        while (true) {
+            try {
+                int vr = getRM(name).voteRequest(tid);
 
-                        // Crash case: CC_10 || CC_11
-                        if(m_crashCase[CC_10] || m_crashCase[CC_11]) {
-                            crash(name);
-                        }
+                // Crash case: CC_14
+                if(m_crashCase[CC_14]) {
+                    vr = VOTE_NO;
+                }
 
-                        // Crash case: CC_3
-                        if(m_crashCase[CC_3]) {
-                            crash(COMP_MS);
-                        }
+                logger.info("RM " + name + " replied with a "
+                        + (vr == VOTE_YES ? "YES" : vr == VOTE_READ_ONLY ? "READ ONLY" : "NO"));
 
-                        break;
-                    } catch (RemoteException e) {
-                        try {
-                            onRMCrash(name);
-                        } catch (RMTimeOutException e1) {
-                            logger.error("Could not collect vote for RM " + name + ". Will consider a NO vote");
-                            return false;
+                // Crash case: CC_10 || CC_11
+                if(m_crashCase[CC_10] || m_crashCase[CC_11]) {
+                    crash(name);
+                }
+
+                // Crash case: CC_3
+                if(m_crashCase[CC_3]) {
+                    crash(COMP_MS);
+                }
+                return vr;
+            } catch (RemoteException e) {
+                try {
+                    onRMCrash(name);
+                } catch (RMTimeOutException e1) {
+                    logger.error("Could not collect vote for RM " + name + ". Will consider a NO vote");
+                    return VOTE_NO;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the decision on a transaction to its RMs at once. The decision
+     * is buffered for an RM which cannot be reached, and sent again once
+     * it is back.
+     * @param tid
+     * @param rms
+     * @param decision
+     * @return completed when every RM acknowledged the decision or has it buffered
+     */
+    private CompletableFuture<Void> sendDecision(int tid, Set<String> rms, String decision) {
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (String name : rms) {
+            acks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    if (decision.equals(DECISION_COMMIT)) {
+                        logger.info("Commit on RM " + name);
+                        getRM(name).commit(tid);
+
+                        // Crash case: CC_6
+                        if(m_crashCase[CC_6]) {
+                            crash(COMP_MS);
                         }
+                    } else {
+                        getRM(name).abort(tid);
+                    }
+                } catch (InvalidTransactionException e) {
+                    logger.warn("RM " + name + " does not know transaction " + tid + ". Message: " + e.getMessage());
+                } catch (RemoteException e) {
+                    if (decision.equals(DECISION_COMMIT)) {
+                        bufferDecision(name, tid, decision);
+                    } else {
+                        // Presumed abort: the RM drops the transaction when
+                        // it syncs with the middleware after coming back
+                        logger.warn("Could not send abort on transaction " + tid + " to RM " + name);
                     }
                 }
+            }, m_rmExecutor));
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[acks.size()]));
+    }
+
+    /**
+     * Commit a transaction on its only RM, without a vote. If the RM does
+     * not come back after a crash, the transaction is aborted.
+     * @param tid
+     * @param name
+     * @return true if committed, false if the RM aborted the transaction
+     * @throws RemoteException
+     */
+    private boolean commitOnePhase(int tid, String name) throws RemoteException {
+        logger.info("Applying one phase commit on RM " + name);
+        boolean committed;
+        while (true) {
+            try {
+                committed = getRM(name).commitOnePhase(tid);
+                break;
+            } catch (InvalidTransactionException e) {
+                logger.warn("RM " + name + " does not know transaction " + tid + ". Message: " + e.getMessage());
+                committed = false;
+                break;
+            } catch (RemoteException e) {
+                try {
+                    onRMCrash(name);
+                } catch (RMTimeOutException e1) {
+                    abort(tid);
+                    throw new RMServerDownException();
+                }
             }
-            return true;
-        } catch (InvalidTransactionException e) {
-            logger.warn("Vote request for an non-existing transaction " + tid);
-            throw e;
-        } catch (NullPointerException e) {
-            throw new TMException();
         }
+        m_tm.removeTransaction(tid);
+        logger.info("Transaction " + tid + (committed ? " committed" : " aborted") + " by RM " + name);
+        return committed;
+    }
+
+    @Override
+    public boolean commitOnePhase(int transactionId) throws RemoteException, InvalidTransactionException {
+        return commit(transactionId);
     }
 
     @Override
@@ -1647,6 +1302,62 @@ class MiddlewareServer implements ResourceManager {
         /*Do nothing*/
     }
 
+    @Override
+    public void startSnapshot(int id) throws RemoteException {
+        try {
+            m_tm.updateLastActive(id);
+            m_tm.addRM(id, ResourceManager.RM_FLIGHT_REF);
+            m_tm.addRM(id, ResourceManager.RM_CAR_REF);
+            m_tm.addRM(id, ResourceManager.RM_ROOM_REF);
+        } catch (NullPointerException e) {
+            throw new TMException();
+        } catch (InvalidTransactionException e) {
+            throw e;
+        }
+
+        // Every RM fixes its snapshot now so that the transaction does not
+        // see commits performed after it started
+        logger.info("Transaction " + id + " will read snapshots");
+        String[] names = {RM_FLIGHT_REF, RM_CAR_REF, RM_ROOM_REF};
+        for(String name : names) {
+            while (true) {
+                try {
+                    if (name.equals(RM_FLIGHT_REF)) {
+                        m_flightRM.startSnapshot(id);
+                    } else if (name.equals(RM_CAR_REF)) {
+                        m_carRM.startSnapshot(id);
+                    } else {
+                        m_roomRM.startSnapshot(id);
+                    }
+                    break;
+                } catch (RemoteException e) {
+                    try {
+                        onRMCrash(name);
+                    } catch (RMTimeOutException e1) {
+                        abort(id);
+                        throw new RMServerDownException();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String queryLockStats() throws RemoteException {
+        StringBuilder stringBuilder = new StringBuilder();
+        ResourceManager[] rms = {m_flightRM, m_carRM, m_roomRM};
+        String[] names = {COMP_FLIGHT, COMP_CAR, COMP_ROOM};
+        for(int i=0; i < rms.length; i++) {
+            try {
+                stringBuilder.append(rms[i].queryLockStats()).append("\n");
+            } catch (Exception e) {
+                logger.warn("Could not get lock statistics from " + names[i] + " RM");
+                stringBuilder.append("RM ").append(names[i]).append(": unavailable\n");
+            }
+        }
+        return stringBuilder.toString();
+    }
+
     @Override
     public boolean crashCase(int id) throws RemoteException {
         switch (id) {
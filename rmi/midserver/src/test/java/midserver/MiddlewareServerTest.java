@@ -0,0 +1,254 @@
+package midserver;
+
+import inter.ResourceManager;
+import lm.DeadlockException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tm.TransactionManager;
+
+import javax.transaction.InvalidTransactionException;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MiddlewareServerTest {
+
+    private StubRM m_car;
+    private StubRM m_flight;
+    private StubRM m_room;
+    private MiddlewareServer m_ms;
+
+    @Before
+    public void setUp() {
+        m_car = new StubRM();
+        m_flight = new StubRM();
+        m_room = new StubRM();
+        m_ms = new MiddlewareServer(m_car.m_proxy, m_flight.m_proxy, m_room.m_proxy);
+    }
+
+    @After
+    public void tearDown() {
+        TransactionManager.getTMFile().delete();
+        new File("RF_table").delete();
+        new File("RMF_table").delete();
+    }
+
+    /**
+     * Answer to a call made on a stub RM
+     */
+    private interface Answer {
+        Object answer(Object[] args) throws Exception;
+    }
+
+    /**
+     * RM answering the calls it is told to, recording every call
+     */
+    private static class StubRM implements InvocationHandler {
+
+        private final Map<String, Answer> m_answers = new ConcurrentHashMap<>();
+        private final List<String> m_calls = new CopyOnWriteArrayList<>();
+        private final ResourceManager m_proxy = (ResourceManager) Proxy.newProxyInstance(
+                ResourceManager.class.getClassLoader(), new Class<?>[]{ResourceManager.class}, this);
+
+        /**
+         * Set the answer to the calls of a method
+         * @param method
+         * @param answer
+         */
+        void answer(String method, Answer answer) {
+            m_answers.put(method, answer);
+        }
+
+        /**
+         * Count the calls of a method
+         * @param method
+         * @return number of calls
+         */
+        int calls(String method) {
+            return (int) m_calls.stream().filter(method::equals).count();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            m_calls.add(method.getName());
+            if(method.getName().equals("abort")) {
+                return null;
+            }
+            Answer answer = m_answers.get(method.getName());
+            if(answer == null) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            return answer.answer(args);
+        }
+    }
+
+    /**
+     * Wait until an RM received a number of calls of a method
+     * @param rm
+     * @param method
+     * @param calls
+     */
+    private static void awaitCalls(StubRM rm, String method, int calls) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(rm.calls(method) < calls && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(calls, rm.calls(method));
+    }
+
+    @Test
+    public void deadlockAbortsAfterOtherCalls_test() throws Exception {
+        int xid = m_ms.start();
+        DeadlockException deadlock = new DeadlockException(xid, "deadlock on car");
+        CountDownLatch called = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        Answer blocked = args -> {
+            called.countDown();
+            release.await();
+            return "";
+        };
+        m_car.answer("queryCustomerInfo", args -> {
+            called.countDown();
+            throw deadlock;
+        });
+        m_flight.answer("queryCustomerInfo", blocked);
+        m_room.answer("queryCustomerInfo", blocked);
+
+        CompletableFuture<String> info = CompletableFuture.supplyAsync(() -> {
+            try {
+                return m_ms.queryCustomerInfo(xid, 1);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        });
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+
+        // Nothing is aborted while the flight and room RMs are still in the call
+        Thread.sleep(200);
+        assertFalse(info.isDone());
+        assertEquals(0, m_car.calls("abort") + m_flight.calls("abort") + m_room.calls("abort"));
+
+        release.countDown();
+        try {
+            info.get(5, TimeUnit.SECONDS);
+            fail("Call should fail on the deadlock");
+        } catch (ExecutionException e) {
+            assertSame(deadlock, e.getCause());
+        }
+        assertEquals(1, m_car.calls("abort"));
+        assertEquals(1, m_flight.calls("abort"));
+        assertEquals(1, m_room.calls("abort"));
+
+        // Aborting again does nothing
+        m_ms.abort(xid);
+        assertEquals(1, m_car.calls("abort"));
+    }
+
+    @Test
+    public void newCustomerUsesGeneratedId_test() throws Exception {
+        int xid = m_ms.start();
+        List<Object> cids = new CopyOnWriteArrayList<>();
+        m_car.answer("newCustomer", args -> 42);
+        Answer add = args -> {
+            cids.add(args[1]);
+            return true;
+        };
+        m_flight.answer("newCustomer", add);
+        m_room.answer("newCustomer", add);
+
+        assertEquals(42, m_ms.newCustomer(xid));
+        assertEquals(2, cids.size());
+        assertEquals(42, cids.get(0));
+        assertEquals(42, cids.get(1));
+        assertEquals(1, m_car.calls("newCustomer"));
+    }
+
+    @Test
+    public void newCustomerFailsIfAnRMRefuses_test() throws Exception {
+        int xid = m_ms.start();
+        m_car.answer("newCustomer", args -> 42);
+        m_room.answer("newCustomer", args -> true);
+        m_flight.answer("newCustomer", args -> false);
+        Answer delete = args -> {
+            assertEquals(42, args[1]);
+            return true;
+        };
+        m_car.answer("deleteCustomer", delete);
+        m_room.answer("deleteCustomer", delete);
+
+        try {
+            m_ms.newCustomer(xid);
+            fail("Customer should not be added");
+        } catch (RemoteException e) {
+            // expected
+        }
+        assertEquals(1, m_car.calls("deleteCustomer"));
+        assertEquals(1, m_room.calls("deleteCustomer"));
+        assertEquals(0, m_flight.calls("deleteCustomer"));
+    }
+
+    @Test
+    public void votesCollectedInParallel_test() throws Exception {
+        int xid = m_ms.start();
+        for(StubRM rm : new StubRM[]{m_car, m_flight, m_room}) {
+            rm.answer("queryCustomerInfo", args -> "");
+            rm.answer("commit", args -> true);
+        }
+        m_ms.queryCustomerInfo(xid, 1);
+
+        // Each RM votes only once all of them were asked
+        CountDownLatch asked = new CountDownLatch(3);
+        Answer vote = args -> {
+            asked.countDown();
+            return asked.await(5, TimeUnit.SECONDS) ? ResourceManager.VOTE_YES : ResourceManager.VOTE_NO;
+        };
+        m_car.answer("voteRequest", vote);
+        m_flight.answer("voteRequest", vote);
+        m_room.answer("voteRequest", args -> {
+            asked.countDown();
+            return ResourceManager.VOTE_READ_ONLY;
+        });
+
+        assertTrue(m_ms.commit(xid));
+        awaitCalls(m_car, "commit", 1);
+        awaitCalls(m_flight, "commit", 1);
+
+        // The read-only RM is left out of the second phase
+        assertEquals(0, m_room.calls("commit"));
+    }
+
+    @Test
+    public void commitOnePhase_test() throws Exception {
+        int xid = m_ms.start();
+        m_flight.answer("queryFlight", args -> 10);
+        m_flight.answer("commitOnePhase", args -> true);
+        assertEquals(10, m_ms.queryFlight(xid, 100));
+
+        // A single RM decides on its own, without a vote
+        assertTrue(m_ms.commit(xid));
+        assertEquals(1, m_flight.calls("commitOnePhase"));
+        assertEquals(0, m_flight.calls("voteRequest"));
+        assertEquals(0, m_car.calls("commitOnePhase") + m_room.calls("commitOnePhase"));
+        try {
+            m_ms.commit(xid);
+            fail("Transaction should be removed");
+        } catch (InvalidTransactionException e) {
+            // expected
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package rm;
 
 import inter.ResourceManager;
+import lm.DeadlockPolicy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -26,9 +27,9 @@ public class RM {
 
     public static void main(String args[]) {
         // Figure out where server is running
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             System.err.println ("Wrong usage");
-            System.out.println("    Usage: java ResImpl.ResourceManagerImpl [port] [obj-ref]");
+            System.out.println("    Usage: java ResImpl.ResourceManagerImpl [port] [obj-ref] [detect|wait-die|wound-wait|occ]");
             System.exit(CODE_ERROR);
         }
 
@@ -39,9 +40,28 @@ public class RM {
         int port = Integer.parseInt(args[0]);
         String objRef = args[1];
 
+        // Read deadlock policy, or optimistic concurrency control
+        DeadlockPolicy policy = DeadlockPolicy.DETECT;
+        boolean optimistic = false;
+        if (args.length == 3 && args[2].equalsIgnoreCase("occ")) {
+            optimistic = true;
+        } else if (args.length == 3) {
+            try {
+                policy = DeadlockPolicy.fromName(args[2]);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown deadlock policy " + args[2]);
+                System.exit(CODE_ERROR);
+            }
+        }
+        if (optimistic) {
+            logger.info("Using optimistic concurrency control");
+        } else {
+            logger.info("Using deadlock policy " + policy);
+        }
+
         // Bind object to reference key
         boolean binded = false;
-        ResourceManagerImpl obj = new ResourceManagerImpl(objRef);
+        ResourceManagerImpl obj = new ResourceManagerImpl(objRef, policy, optimistic);
         ResourceManager rm = null;
         while (!binded) {
             try {